@@ -0,0 +1,153 @@
+package designProject;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Host side of DistanceStreamer. Decodes the batched packets sent by the NXT.
+ * See DistanceStreamer for the packet layout.
+ */
+public class DistanceStreamReceiver {
+
+	/*
+	 * One decoded distance frame
+	 */
+	public static class Frame {
+		public int seq; // sequence number of the packet the frame arrived in
+		public int timestamp; // NXT time in ms when the frame was queued
+		public int num;
+		public int[] x = new int[theNextSensor.MAX_DISTANCES];
+		public int[] dist = new int[theNextSensor.MAX_DISTANCES];
+	}
+
+	private DataInputStream in;
+	private Frame[] frames;
+	private int frameCount;
+
+	private int lastSeq;
+	private boolean firstPacket;
+	private int lostPackets;
+	private int droppedFrames;
+	private int badPackets;
+	private String errorMessage;
+
+	public DistanceStreamReceiver(InputStream in) {
+		this.in = new DataInputStream(in);
+		frames = new Frame[DistanceStreamer.MAX_FRAMES_PER_PACKET];
+		for (int i=0; i<frames.length; i++) {
+			frames[i] = new Frame();
+		}
+		frameCount = 0;
+		firstPacket = true;
+		lostPackets = 0;
+		droppedFrames = 0;
+		badPackets = 0;
+		errorMessage = "";
+	}
+
+	private void createErrorMessage(String msg) {
+		errorMessage = "DistanceStreamReceiver: " + msg;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/*
+	 * Block until the next packet is received and decode it.
+	 * Return the number of frames in the packet or -1 on end of stream / read error.
+	 * The frames are valid until the next call and can be retrieved with getFrame.
+	 */
+	public int readPacket() {
+		try {
+			// Resynchronize on the magic byte in case the stream was joined mid-packet
+			int b;
+			while ((b = in.read()) != (DistanceStreamer.MAGIC & 0xff)) {
+				if (b < 0) {
+					createErrorMessage("End of stream");
+					return -1;
+				}
+			}
+			int payloadLen = in.readUnsignedShort();
+			int seq = in.readInt();
+			int dropped = in.readInt();
+			int frames = in.readUnsignedByte();
+			int remaining = payloadLen - DistanceStreamer.PACKET_INFO_LEN;
+
+			if (frames > this.frames.length) {
+				badPackets++;
+				createErrorMessage("Packet " + seq + " has too many frames (" + frames + ")");
+				in.skipBytes(remaining);
+				return 0;
+			}
+
+			for (int f=0; f<frames; f++) {
+				Frame frame = this.frames[f];
+				frame.seq = seq;
+				frame.timestamp = in.readInt();
+				frame.num = in.readUnsignedByte();
+				remaining -= DistanceStreamer.FRAME_INFO_LEN;
+				if (frame.num > theNextSensor.MAX_DISTANCES) {
+					badPackets++;
+					createErrorMessage("Frame in packet " + seq + " has too many distances (" + frame.num + ")");
+					in.skipBytes(remaining);
+					return 0;
+				}
+				for (int i=0; i<frame.num; i++) {
+					frame.x[i] = in.readShort();
+					frame.dist[i] = in.readShort();
+				}
+				remaining -= frame.num*4;
+			}
+			if (remaining != 0) {
+				badPackets++;
+				createErrorMessage("Packet " + seq + " length mismatch (" + remaining + " bytes)");
+				if (remaining > 0) {
+					in.skipBytes(remaining);
+				}
+			}
+
+			if (!firstPacket && seq != lastSeq + 1) {
+				lostPackets += seq - lastSeq - 1;
+			}
+			firstPacket = false;
+			lastSeq = seq;
+			droppedFrames = dropped;
+			frameCount = frames;
+			return frames;
+		} catch (IOException e) {
+			createErrorMessage("Unable to read packet: " + e.getMessage());
+			return -1;
+		}
+	}
+
+	public Frame getFrame(int i) {
+		if (i < 0 || i >= frameCount) {
+			return null;
+		}
+		return frames[i];
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/*
+	 * Number of packets missing from the sequence so far
+	 */
+	public int getLostPackets() {
+		return lostPackets;
+	}
+
+	/*
+	 * Number of frames the NXT reported as dropped due to backpressure
+	 */
+	public int getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	public int getBadPackets() {
+		return badPackets;
+	}
+}
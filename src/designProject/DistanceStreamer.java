@@ -0,0 +1,248 @@
+package designProject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Streams distance frames from the NXT to a host (normally over a Bluetooth NXTConnection).
+ *
+ * Frames are copied into a bounded queue by offer() which never blocks, so the sensor loop
+ * is not held up by the radio. A separate thread drains the queue and batches several frames
+ * into one binary packet. When the queue is full the oldest frame is dropped and counted.
+ *
+ * Packet layout (multi-byte values are big-endian, matching DataInputStream on the host):
+ * ------------------------
+ *  [MAGIC] [len hi] [len lo]                  <- header, len is the number of payload bytes that follow
+ *  [seq (4 bytes)]                            <- packet sequence number, incremented for every packet
+ *  [dropped (4 bytes)]                        <- total number of frames dropped so far on the NXT
+ *  [frame count (1 byte)]
+ *  per frame:
+ *  [timestamp (4 bytes)] [num (1 byte)]       <- NXT time in ms when the frame was offered
+ *  num x ([x (2 bytes)] [distance (2 bytes)])
+ */
+public class DistanceStreamer implements Runnable {
+
+	public static final byte MAGIC = (byte)0xD5;
+	public static final int HEADER_LEN = 3;
+	public static final int PACKET_INFO_LEN = 9;
+	public static final int FRAME_INFO_LEN = 5;
+	public static final int MAX_FRAMES_PER_PACKET = 16;
+
+	// Longest time a partially filled batch is held back before being sent anyway
+	private final int MAX_BATCH_DELAY = 200;
+
+	private OutputStream out;
+
+	// Ring buffer of queued frames
+	private int[][] frameX;
+	private int[][] frameDist;
+	private int[] frameNum;
+	private int[] frameTime;
+	private int head; // index of the oldest queued frame
+	private int count; // number of queued frames
+
+	private int framesPerPacket;
+	private byte[] packet;
+	private int seq;
+	private int dropped;
+	private int sent;
+
+	private Thread thread;
+	private volatile boolean running;
+	private String errorMessage;
+
+	public DistanceStreamer(OutputStream out, int queueLen, int framesPerPacket) {
+		this.out = out;
+
+		if (queueLen < 1) {
+			queueLen = 1;
+		}
+		if (framesPerPacket < 1) {
+			framesPerPacket = 1;
+		} else if (framesPerPacket > MAX_FRAMES_PER_PACKET) {
+			framesPerPacket = MAX_FRAMES_PER_PACKET;
+		}
+		if (framesPerPacket > queueLen) {
+			framesPerPacket = queueLen;
+		}
+		this.framesPerPacket = framesPerPacket;
+
+		frameX = new int[queueLen][theNextSensor.MAX_DISTANCES];
+		frameDist = new int[queueLen][theNextSensor.MAX_DISTANCES];
+		frameNum = new int[queueLen];
+		frameTime = new int[queueLen];
+		head = 0;
+		count = 0;
+
+		packet = new byte[HEADER_LEN + PACKET_INFO_LEN
+		                  + framesPerPacket*(FRAME_INFO_LEN + theNextSensor.MAX_DISTANCES*4)];
+		seq = 0;
+		dropped = 0;
+		sent = 0;
+		errorMessage = "";
+	}
+
+	private void createErrorMessage(String msg) {
+		errorMessage = "DistanceStreamer: " + msg;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/*
+	 * Start the sending thread
+	 */
+	public void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Stop the sending thread. Frames still in the queue are sent before the thread exits.
+	 */
+	public void stop() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				// nothing to do
+			}
+			thread = null;
+		}
+	}
+
+	/*
+	 * Queue a frame as returned by theNextSensor.getDistance(int[][], int). Never blocks.
+	 * Return 0 if the frame was queued, 1 if the oldest frame had to be dropped to make room.
+	 */
+	public int offer(int[][] dist, int num) {
+		if (num > theNextSensor.MAX_DISTANCES) {
+			num = theNextSensor.MAX_DISTANCES;
+		}
+		int ret = 0;
+		synchronized (this) {
+			if (count == frameNum.length) {
+				// backpressure: drop the oldest frame
+				head = (head + 1) % frameNum.length;
+				count--;
+				dropped++;
+				ret = 1;
+			}
+			int tail = (head + count) % frameNum.length;
+			System.arraycopy(dist[0], 0, frameX[tail], 0, num);
+			System.arraycopy(dist[1], 0, frameDist[tail], 0, num);
+			frameNum[tail] = num;
+			frameTime[tail] = (int)System.currentTimeMillis();
+			count++;
+			if (count >= framesPerPacket) {
+				notifyAll();
+			}
+		}
+		return ret;
+	}
+
+	public synchronized int getDropped() {
+		return dropped;
+	}
+
+	public synchronized int getSentPackets() {
+		return sent;
+	}
+
+	public synchronized int getQueued() {
+		return count;
+	}
+
+	public void run() {
+		while (true) {
+			int len;
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + MAX_BATCH_DELAY;
+				while (running && count < framesPerPacket) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0 && count > 0) {
+						break;
+					}
+					try {
+						wait(wait > 0 ? wait : MAX_BATCH_DELAY);
+					} catch (InterruptedException e) {
+						// re-check the queue
+					}
+				}
+				if (!running && count == 0) {
+					return;
+				}
+				len = buildPacket();
+			}
+
+			// Write outside the lock so offer() is never blocked by the radio
+			try {
+				out.write(packet, 0, len);
+				out.flush();
+			} catch (IOException e) {
+				createErrorMessage("Unable to write packet " + (seq-1) + " to the host");
+				synchronized (this) {
+					running = false;
+					count = 0;
+				}
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Move up to framesPerPacket queued frames into the packet buffer.
+	 * Must be called with the lock held. Return the packet length in bytes.
+	 */
+	private int buildPacket() {
+		int frames = count < framesPerPacket ? count : framesPerPacket;
+		int pos = HEADER_LEN;
+		pos = putInt(pos, seq);
+		pos = putInt(pos, dropped);
+		packet[pos++] = (byte)frames;
+
+		for (int f=0; f<frames; f++) {
+			int num = frameNum[head];
+			pos = putInt(pos, frameTime[head]);
+			packet[pos++] = (byte)num;
+			for (int i=0; i<num; i++) {
+				pos = putShort(pos, frameX[head][i]);
+				pos = putShort(pos, frameDist[head][i]);
+			}
+			head = (head + 1) % frameNum.length;
+			count--;
+		}
+
+		int payloadLen = pos - HEADER_LEN;
+		packet[0] = MAGIC;
+		packet[1] = (byte)((payloadLen >> 8) & 0xff);
+		packet[2] = (byte)(payloadLen & 0xff);
+		seq++;
+		sent++;
+		return pos;
+	}
+
+	private int putInt(int pos, int value) {
+		packet[pos] = (byte)((value >> 24) & 0xff);
+		packet[pos+1] = (byte)((value >> 16) & 0xff);
+		packet[pos+2] = (byte)((value >> 8) & 0xff);
+		packet[pos+3] = (byte)(value & 0xff);
+		return pos + 4;
+	}
+
+	private int putShort(int pos, int value) {
+		packet[pos] = (byte)((value >> 8) & 0xff);
+		packet[pos+1] = (byte)(value & 0xff);
+		return pos + 2;
+	}
+}
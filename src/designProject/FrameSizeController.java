@@ -0,0 +1,170 @@
+package designProject;
+
+/*
+ * Picks the number of distances to request per frame so that a frame still fits in a latency budget.
+ *
+ * The transfer time of a frame is modelled as overhead + perDistance*num. Both terms are estimated online
+ * with a least-squares fit over the measured frames in which older measurements are gradually forgotten,
+ * so the estimate follows the link when it degrades or recovers. The frame size then grows step by step
+ * while the predicted time fits the budget and shrinks at once when a frame takes too long.
+ */
+public class FrameSizeController {
+
+	// Weight kept by the previous measurements at every update
+	private final float FORGET = 0.9f;
+	// Use only this fraction of the budget to leave room for jitter
+	private final float MARGIN = 0.85f;
+	// Maximum change of the frame size per update while frames fit in the budget
+	private final int MAX_STEP = 2;
+
+	private int budget; // ms
+	private int minNum;
+	private int maxNum;
+	private int num;
+
+	// Exponentially weighted sums for the least-squares fit of time = overhead + perDistance*num
+	private float sw;
+	private float sx;
+	private float sy;
+	private float sxx;
+	private float sxy;
+
+	private float overhead;
+	private float perDistance;
+	private int lastTime;
+	private int overruns;
+
+	public FrameSizeController(int budget, int minNum, int maxNum) {
+		this.budget = budget;
+		this.minNum = minNum < 1 ? 1 : minNum;
+		this.maxNum = maxNum < this.minNum ? this.minNum : maxNum;
+		reset();
+	}
+
+	/*
+	 * Forget everything that was measured, e.g. after the baud rate was changed.
+	 * The frame size starts again from the minimum.
+	 */
+	public void reset() {
+		num = minNum;
+		sw = 0;
+		sx = 0;
+		sy = 0;
+		sxx = 0;
+		sxy = 0;
+		overhead = 0;
+		perDistance = 0;
+		lastTime = 0;
+		overruns = 0;
+	}
+
+	public void setBudget(int budget) {
+		this.budget = budget;
+		adapt();
+	}
+
+	public int getBudget() {
+		return budget;
+	}
+
+	/*
+	 * Number of distances to request in the next frame
+	 */
+	public int getNum() {
+		return num;
+	}
+
+	/*
+	 * Predicted transfer time in ms of a frame of num distances
+	 */
+	public int predict(int num) {
+		return Math.round(overhead + perDistance*num);
+	}
+
+	/*
+	 * Time in ms to wait between the start of two frames: the budget, or longer if even
+	 * the smallest frame doesn't fit in it
+	 */
+	public int getPollPeriod() {
+		int t = predict(num);
+		return t > budget ? t : budget;
+	}
+
+	public int getLastTime() {
+		return lastTime;
+	}
+
+	/*
+	 * Number of frames that failed or took longer than the budget
+	 */
+	public int getOverruns() {
+		return overruns;
+	}
+
+	/*
+	 * Add the measured transfer time of a frame of num distances. A failed frame counts as
+	 * one that took the whole budget and halves the frame size, so a failing link also makes
+	 * the frames smaller.
+	 */
+	public void update(int num, int time, boolean success) {
+		if (!success && time < budget) {
+			time = budget;
+		}
+		lastTime = time;
+
+		sw = FORGET*sw + 1;
+		sx = FORGET*sx + num;
+		sy = FORGET*sy + time;
+		sxx = FORGET*sxx + num*num;
+		sxy = FORGET*sxy + num*time;
+
+		float det = sw*sxx - sx*sx;
+		if (det > 0.01f*sw*sw) {
+			perDistance = (sw*sxy - sx*sy)/det;
+			if (perDistance < 0) {
+				perDistance = 0;
+			}
+			overhead = (sy - perDistance*sx)/sw;
+			if (overhead < 0) {
+				overhead = 0;
+			}
+		} else {
+			// Not enough different frame sizes measured yet to tell the overhead apart.
+			// Assuming it is 0 overestimates larger frames, so the frame size grows carefully.
+			overhead = 0;
+			perDistance = (sy/sw)/(sx/sw);
+		}
+
+		if (!success || time > budget) {
+			overruns++;
+			// The link got slower or lost the frame: shrink straight away, in proportion if the time is known
+			int shrunk = success ? (num*budget)/time : num/2;
+			if (shrunk < this.num) {
+				this.num = shrunk < minNum ? minNum : shrunk;
+			}
+			return;
+		}
+		adapt();
+	}
+
+	/*
+	 * Pick the largest frame size predicted to fit in the budget, changing by at most MAX_STEP.
+	 * Only a frame that actually overran the budget shrinks the frame size faster.
+	 */
+	private void adapt() {
+		float limit = budget*MARGIN;
+		int best = minNum;
+		for (int n=maxNum; n>=minNum; n--) {
+			if (overhead + perDistance*n <= limit) {
+				best = n;
+				break;
+			}
+		}
+		if (best > num + MAX_STEP) {
+			best = num + MAX_STEP;
+		} else if (best < num - MAX_STEP) {
+			best = num - MAX_STEP < minNum ? minNum : num - MAX_STEP;
+		}
+		num = best;
+	}
+}
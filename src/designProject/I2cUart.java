@@ -34,13 +34,59 @@ public class I2cUart {
 	final int XOFF1      = 0x06 << 3;
 	final int XOFF2      = 0x07 << 3;
 
+	// Accessible when MCR[2] = 1 and EFR[4] = 1
+	final int TCR        = 0x06 << 3;
+	final int TLR        = 0x07 << 3;
+
 
 	final byte EFR_ENABLE_ENHANCED_FUNCTIONS = 1 << 4;
+	final byte EFR_AUTO_RTS = 1 << 6;
+	final byte EFR_AUTO_CTS = (byte)(1 << 7);
+	final byte EFR_TX_XON1_XOFF1 = 0x2 << 2; // transmit XON1/XOFF1 as flow control characters
+
+	final byte MCR_TCR_TLR_ENABLE = 1 << 2;
+	final byte MCR_LOOPBACK = 1 << 4; // TX output is looped back to RX input internally
+
+	final byte LSR_DATA_READY = 1 << 0;
+	final byte LSR_OVERRUN = 1 << 1;
+	final byte LSR_FIFO_ERROR = (byte)(1 << 7);
+
+	final byte XON_CHAR = 0x11;
+	final byte XOFF_CHAR = 0x13;
+
+	// Default RX FIFO levels (bytes) at which the Pi is halted and resumed
+	final int DEFAULT_HALT_LEVEL = 48;
+	final int DEFAULT_RESUME_LEVEL = 16;
+
+	// Size of the RX and TX FIFOs of the chip
+	public static final int FIFO_SIZE = 64;
+	// Every byte on the line takes a start bit, 8 data bits and a stop bit
+	final int BITS_PER_BYTE = 10;
 
-	final byte UART_CONFIG_DIVL = 0x60; // Bauderate of 9600 with xtal=14MHz
-	final byte UART_CONFIG_DIVH = 0x00;
+	// Baudrate = XTAL_FREQ/(16*divisor), i.e. a divisor of 0x60 gives 9600
+	final int XTAL_FREQ = 14745600;
+	final int DEFAULT_BAUD_RATE = 9600;
 	final byte UART_CONFIG_DATA_FORMAT = 0x3;
 
+	final byte FCR_ENABLE_FIFO = 0x01;
+	final byte FCR_RESET_RX = 0x02;
+	final byte FCR_RESET_TX = 0x04;
+
+	// Default time in ms to wait for data or for TX buffer space
+	final int DEFAULT_TIMEOUT = 50;
+	// Time in ms between two polls of RXLVL while waiting for data
+	final int POLL_INTERVAL = 2;
+	// Maximum number of bytes read over I2C in one transaction
+	final int MAX_I2C_READ = 16;
+
+	// Time in ms writes are held back after a failed write. Longer than the 20 ms after which the Pi
+	// drops a command whose parameter bytes stopped coming, so a partly sent command is never
+	// completed by the bytes of the next one.
+	final int RESYNC_GAP = 25;
+
+	// Number of single byte round trips measured by calibrate
+	final int CALIBRATION_ROUND_TRIPS = 8;
+
 	// This depends on how A0 and A1 are connected on the chip.
 	// Current address is valid if A0 and A1 and connected to Vgg (Ground).
 	final int ADDRESS = 0x9A;
@@ -49,12 +95,40 @@ public class I2cUart {
 	private boolean simulation;
 	private int timeout;
 	private byte myByte[];
+	private byte chunk[];
 	private String errorMessage;
+	private RecoveryPolicy recovery;
+	private boolean txFull; // last write failed because the TX buffer had no space
+	private int readPos; // bytes received so far by the current read, kept across its retries
+	private boolean txInterrupted; // a write failed, so the Pi may be waiting for the rest of a command
+
+	private FlowControl flowControl;
+	private int haltLevel;
+	private int resumeLevel;
+	private int overruns;
+	private int baudRate;
 
 	private piSimulator piSim;
+	private RegisterBus bus; // simulator in another process, see SocketTransport
+
+	/*
+	 * Flow control between the Pi and the RX FIFO of the chip.
+	 * With RTS/CTS the chip deasserts RTS when the RX FIFO reaches the halt level.
+	 * With XON/XOFF the chip sends XOFF to the Pi instead. In both cases the Pi may send
+	 * again once the RX FIFO has drained to the resume level.
+	 */
+	public static enum FlowControl {
+		FLOW_NONE,
+		FLOW_RTS_CTS,
+		FLOW_XON_XOFF,
+	}
 
 	public I2cUart(SensorPort port, boolean simulation) {
 
+		flowControl = FlowControl.FLOW_NONE;
+		haltLevel = DEFAULT_HALT_LEVEL;
+		resumeLevel = DEFAULT_RESUME_LEVEL;
+		baudRate = DEFAULT_BAUD_RATE;
 		mySensor = new I2CSensor(port, ADDRESS, I2CPort.STANDARD_MODE, SensorConstants.TYPE_LOWSPEED);
 		this.simulation = simulation;
 
@@ -64,34 +138,95 @@ public class I2cUart {
 			init();
 		}
 		myByte = new byte [1]; 
+		chunk = new byte [MAX_I2C_READ];
 		errorMessage = "";
+		timeout = DEFAULT_TIMEOUT;
+		recovery = new RecoveryPolicy();
 	}
 
 	/*
 	 * Constructor to run this class in the simulation mode
 	 */
 	public I2cUart() {
+		flowControl = FlowControl.FLOW_NONE;
+		haltLevel = DEFAULT_HALT_LEVEL;
+		resumeLevel = DEFAULT_RESUME_LEVEL;
+		baudRate = DEFAULT_BAUD_RATE;
 		this.simulation = true;
 		piSim = new piSimulator();
 
 		myByte = new byte [1]; 
+		chunk = new byte [MAX_I2C_READ];
 		errorMessage = "";
+		timeout = DEFAULT_TIMEOUT;
+		recovery = new RecoveryPolicy();
+	}
+
+	/*
+	 * Constructor to run this class in the simulation mode with distances generated from a scene
+	 */
+	public I2cUart(SceneGenerator scene) {
+		this();
+		piSim.setScene(scene);
 	}
 	
+	/*
+	 * Constructor to run this class against a simulator reached through the given bus,
+	 * e.g. a SocketTransport connected to a SimulatorServer
+	 */
+	public I2cUart(RegisterBus bus) {
+		flowControl = FlowControl.FLOW_NONE;
+		haltLevel = DEFAULT_HALT_LEVEL;
+		resumeLevel = DEFAULT_RESUME_LEVEL;
+		baudRate = DEFAULT_BAUD_RATE;
+		this.bus = bus;
+		this.simulation = false;
+
+		myByte = new byte [1]; 
+		chunk = new byte [MAX_I2C_READ];
+		errorMessage = "";
+		timeout = DEFAULT_TIMEOUT;
+		recovery = new RecoveryPolicy();
+		init();
+	}
+
 	public I2cUart(SensorPort port) {
+		flowControl = FlowControl.FLOW_NONE;
+		haltLevel = DEFAULT_HALT_LEVEL;
+		resumeLevel = DEFAULT_RESUME_LEVEL;
+		baudRate = DEFAULT_BAUD_RATE;
 		mySensor = new I2CSensor(port, ADDRESS, NXTProtocol.RAWMODE, SensorConstants.TYPE_LOWSPEED);
+		myByte = new byte [1]; 
+		chunk = new byte [MAX_I2C_READ];
+		errorMessage = "";
+		timeout = DEFAULT_TIMEOUT;
+		recovery = new RecoveryPolicy();
 	}
 
 	private int sendDataRoot(int register, byte value) {
-		if (simulation) {
+		if (bus != null) {
+			return bus.sendData(register, value);
+		} else if (simulation) {
 			return piSim.sendData(register, value);
 		} else {
 			return mySensor.sendData(register, value);
 		}
 	}
 
+	private int sendDataRoot(int register, byte buf[], int length) {
+		if (bus != null) {
+			return bus.sendData(register, buf, length);
+		} else if (simulation) {
+			return piSim.sendData(register, buf, length);
+		} else {
+			return mySensor.sendData(register, buf, length);
+		}
+	}
+
 	private int getDataRoot(int register, byte buf[], int length) {
-		if (simulation) {
+		if (bus != null) {
+			return bus.getData(register, buf, length);
+		} else if (simulation) {
 			return piSim.getData(register, buf, length);
 		} else {
 			return mySensor.getData(register, buf, length);
@@ -106,17 +241,174 @@ public class I2cUart {
 		return errorMessage;
 	}
 
-	public void init() {
+	public void setRecoveryPolicy(RecoveryPolicy policy) {
+		recovery = policy;
+	}
+
+	public RecoveryPolicy getRecoveryPolicy() {
+		return recovery;
+	}
+
+	/*
+	 * Set the time in ms to wait for data to arrive or for space in the TX buffer
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/*
+	 * Reset the RX and/or TX FIFO, dropping any data in it. FIFO mode stays enabled.
+	 */
+	public int resetFifo(boolean rx, boolean tx) {
+		byte fcr = FCR_ENABLE_FIFO;
+		if (rx) {
+			fcr |= FCR_RESET_RX;
+		}
+		if (tx) {
+			fcr |= FCR_RESET_TX;
+		}
+		recovery.recordFifoReset();
+		if (sendDataRoot(FCR, fcr) != 0) {
+			createErrorMessage("Unable to reset the FIFO through FCR");
+			return -1;
+		}
+		return 0;
+	}
+
+	/*
+	 * Count a failed operation and re-initialize the UART if it keeps failing.
+	 * If the re-initialization fails too, the next failures try again.
+	 */
+	private void recordFailure() {
+		if (recovery.recordFailure()) {
+			recovery.recordReinit();
+			init();
+		}
+	}
+
+	/*
+	 * Program the UART configuration. Return 0 if success, -1 if a register couldn't be written.
+	 */
+	public int init() {
 		// Initialize SC16IS750 settings related to UART configuration
-		sendDataRoot(LCR, (byte)0x80); // 0x80 to program baudrate
-		sendDataRoot(DLL, UART_CONFIG_DIVL);
-		sendDataRoot(DLM, UART_CONFIG_DIVH); 
+		int divisor = XTAL_FREQ/(16*baudRate);
+		if (sendDataRoot(LCR, (byte)0x80) != 0 // 0x80 to program baudrate
+				|| sendDataRoot(DLL, (byte)(divisor & 0xff)) != 0
+				|| sendDataRoot(DLM, (byte)((divisor >> 8) & 0xff)) != 0) {
+			createErrorMessage("init: Unable to program the baudrate");
+			return -1;
+		}
+
+		if (sendDataRoot(LCR, (byte)0xBF) != 0) { // access EFR register
+			createErrorMessage("init: Unable to access EFR");
+			return -1;
+		}
+		byte efr = EFR_ENABLE_ENHANCED_FUNCTIONS; // enable enhanced registers
+		if (flowControl == FlowControl.FLOW_RTS_CTS) {
+			efr |= EFR_AUTO_RTS | EFR_AUTO_CTS;
+		} else if (flowControl == FlowControl.FLOW_XON_XOFF) {
+			// Only the chip sends XON/XOFF. Received flow control characters are not interpreted
+			// because the distance data is binary and may contain them.
+			efr |= EFR_TX_XON1_XOFF1;
+			if (sendDataRoot(XON1, XON_CHAR) != 0 || sendDataRoot(XOFF1, XOFF_CHAR) != 0) {
+				createErrorMessage("init: Unable to program the XON/XOFF characters");
+				return -1;
+			}
+		}
+		if (sendDataRoot(EFR, efr) != 0
+				|| sendDataRoot(LCR, UART_CONFIG_DATA_FORMAT) != 0) { // 8 data bit, 1 stop bit, no parity
+			createErrorMessage("init: Unable to program the data format");
+			return -1;
+		}
+
+		if (flowControl != FlowControl.FLOW_NONE) {
+			// Program the halt/resume levels in TCR. Both are in units of 4 bytes.
+			if (sendDataRoot(MCR, MCR_TCR_TLR_ENABLE) != 0
+					|| sendDataRoot(TCR, (byte)(((resumeLevel/4) << 4) | (haltLevel/4))) != 0
+					|| sendDataRoot(MCR, (byte)0x00) != 0) {
+				createErrorMessage("init: Unable to program the flow control levels");
+				return -1;
+			}
+		}
+
+		if (sendDataRoot(FCR, (byte)0x06) != 0 // reset TXFIFO, reset RXFIFO, non FIFO mode
+				|| sendDataRoot(FCR, (byte)0x01) != 0) { // enable FIFO mode
+			createErrorMessage("init: Unable to enable the FIFOs");
+			return -1;
+		}
+		return 0;
+	}
 
-		sendDataRoot(LCR, (byte)0xBF); // access EFR register
-		sendDataRoot(EFR, EFR_ENABLE_ENHANCED_FUNCTIONS); // enable enhanced registers
-		sendDataRoot(LCR, UART_CONFIG_DATA_FORMAT); // 8 data bit, 1 stop bit, no parity
-		sendDataRoot(FCR, (byte)0x06); // reset TXFIFO, reset RXFIFO, non FIFO mode
-		sendDataRoot(FCR, (byte)0x01); // enable FIFO mode   
+	/*
+	 * Change the baudrate of the UART. The Pi has to be switched to the same baudrate.
+	 * The UART is re-initialized with the new divisor.
+	 */
+	public int setBaudRate(int baud) {
+		if (baud <= 0 || baud > XTAL_FREQ/16) {
+			createErrorMessage("Invalid baudrate " + baud);
+			return -1;
+		}
+		baudRate = baud;
+		return init();
+	}
+
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	/*
+	 * Time in ms (rounded up) the given number of bytes take on the line at the current baudrate
+	 */
+	public int transferTime(int bytes) {
+		return (bytes*BITS_PER_BYTE*1000 + baudRate - 1)/baudRate;
+	}
+
+	/*
+	 * Enable flow control so the Pi is halted before the 64 byte RX FIFO overflows.
+	 * haltLevel and resumeLevel are RX FIFO levels in bytes (multiples of 4, 4-60) with
+	 * resumeLevel < haltLevel. The UART is re-initialized with the new settings.
+	 */
+	public int setFlowControl(FlowControl fc, int haltLevel, int resumeLevel) {
+		if (haltLevel < 4 || haltLevel > 60 || resumeLevel < 0 || resumeLevel >= haltLevel
+				|| haltLevel % 4 != 0 || resumeLevel % 4 != 0) {
+			// TCR holds both levels in units of 4 bytes
+			createErrorMessage("Invalid flow control levels (halt: " + haltLevel + ", resume: " + resumeLevel + ")");
+			return -1;
+		}
+		flowControl = fc;
+		this.haltLevel = haltLevel;
+		this.resumeLevel = resumeLevel;
+		return init();
+	}
+
+	public int setFlowControl(FlowControl fc) {
+		return setFlowControl(fc, DEFAULT_HALT_LEVEL, DEFAULT_RESUME_LEVEL);
+	}
+
+	public FlowControl getFlowControl() {
+		return flowControl;
+	}
+
+	/*
+	 * Read LSR and record RX overruns. Return the LSR value or -1 if it can't be read.
+	 */
+	public int checkLineStatus() {
+		if (getDataRoot(LSR, myByte, 1) != 0) {
+			createErrorMessage("Unable to read register LSR over I2C");
+			return -1;
+		}
+		int lsr = myByte[0] & 0xff;
+		if ((lsr & LSR_OVERRUN) != 0) {
+			overruns++;
+		}
+		return lsr;
+	}
+
+	/*
+	 * Number of RX FIFO overruns detected so far
+	 */
+	public int getOverruns() {
+		return overruns;
 	}
 
 	public int availableData() {
@@ -137,36 +429,127 @@ public class I2cUart {
 	}
 
 	/*
-	 * Return 1 if success, 0 otherwise.
+	 * Read len bytes from the UART, retrying according to the recovery policy.
+	 * If the data still isn't complete the RX FIFO is reset so the partial data doesn't
+	 * corrupt the next read.
+	 * Return 0 if success, -1 otherwise.
 	 */
 	public int readData(byte[] buf, int len) {
-		// Wait 20 ms reading the data so the sensor has enough time to gather the data
-		Delay.msDelay(20);
-		if (this.availableData() < len) {
-			// Wait a bit longer
-			Delay.msDelay(timeout-20);
+		int maxRetries = recovery.getOperationRetries();
+		readPos = 0;
+		for (int attempt=0; ; attempt++) {
+			// a retry keeps what has already been read
+			int ret = readDataOnce(buf, len);
+			if (ret == 0) {
+				recovery.recordSuccess(attempt > 0, true);
+				return 0;
+			}
+			if (ret == -2 || attempt >= maxRetries) {
+				// Data lost in an overrun can't be recovered by reading again
+				break;
+			}
+			recovery.recordRetry();
+			Delay.msDelay(recovery.getBackoff(attempt));
+		}
+		if (maxRetries > 0) {
+			resetFifo(true, false);
+		}
+		recordFailure();
+		return -1;
+	}
+
+	/*
+	 * Read the bytes from readPos up to len as they arrive, until the timeout expires.
+	 * The timeout starts once the remaining bytes had time to arrive at the current baudrate,
+	 * so a long response isn't cut off while it is still on the line.
+	 * Data is read as soon as it is available so the FIFO keeps draining while the Pi is
+	 * still sending (with flow control a frame can be larger than the halt level).
+	 * readPos counts every byte copied to buf, also when a later I2C read fails, so the
+	 * next attempt continues right after the bytes already taken out of the FIFO.
+	 * Return 0 if all len bytes were read, 1 on timeout, -1 if an I2C read failed and
+	 * -2 if LSR reports that data was lost.
+	 */
+	private int readDataOnce(byte[] buf, int len) {
+		long deadline = System.currentTimeMillis() + timeout + transferTime(len - readPos);
+		while (readPos < len) {
 			int availDataLen = this.availableData();
-			if (availDataLen < len) {
-				// For some reason there is no data available
-				// Timeout
-				createErrorMessage("The data available to be read (" + availDataLen + ") is less than required length of " + len);				
+			if (availDataLen < 0) {
+				createErrorMessage("Unable to read register RXLVL over I2C");
+				return -1;
+			}
+			if (availDataLen == 0) {
+				if (System.currentTimeMillis() >= deadline) {
+					// For some reason there is no data available
+					// Timeout
+					createErrorMessage("The data available to be read (" + readPos + ") is less than required length of " + len);				
+					return 1;
+				}
+				Delay.msDelay(POLL_INTERVAL);
+				continue;
+			}
+
+			// Read in chunks the I2C transaction can carry
+			int n = len - readPos;
+			if (n > availDataLen) {
+				n = availDataLen;
+			}
+			if (n > MAX_I2C_READ) {
+				n = MAX_I2C_READ;
+			}
+			if(getDataRoot(RHR, chunk, n) != 0) {
+				createErrorMessage("Unable to read data from RHR register over I2C");
 				return -1;
 			}
+			System.arraycopy(chunk, 0, buf, readPos, n);
+			readPos += n;
 		}
 
-		if(getDataRoot(RHR, buf, len) == 0) {
-			// success
-			return 0;
-		} else {
-			createErrorMessage("Unable to read data from RHR register over I2C");
-			return -1;
+		// Make sure no bytes were lost because the RX FIFO overflowed
+		int lsr = checkLineStatus();
+		if (lsr >= 0 && (lsr & (LSR_OVERRUN | LSR_FIFO_ERROR)) != 0) {
+			createErrorMessage("RX FIFO overrun or data error detected (LSR: " + lsr + ")");
+			return -2;
 		}
+		// success
+		return 0;
 	}
 
+	/*
+	 * Write byte to UART, retrying according to the recovery policy.
+	 * After a failed write the next write waits RESYNC_GAP first, so the Pi drops whatever
+	 * part of a command it received before the next command starts.
+	 * Return 0 if success, -1 otherwise.
+	 */
 	public int writeByte(byte value) {
-		/*
-		 * Write byte to UART.
-		 */
+		if (txInterrupted) {
+			Delay.msDelay(RESYNC_GAP);
+			txInterrupted = false;
+		}
+		int maxRetries = recovery.getOperationRetries();
+		for (int attempt=0; ; attempt++) {
+			if (writeByteOnce(value) == 0) {
+				recovery.recordSuccess(attempt > 0, false);
+				return 0;
+			}
+			if (txFull) {
+				// The Pi isn't draining the TX FIFO. Drop what is stuck in it. That may include
+				// earlier bytes of the same command, so this byte can't simply be sent again.
+				resetFifo(false, true);
+				break;
+			}
+			if (attempt >= maxRetries) {
+				break;
+			}
+			recovery.recordRetry();
+			Delay.msDelay(recovery.getBackoff(attempt));
+		}
+		txInterrupted = true;
+		recordFailure();
+		return -1;
+	}
+
+	private int writeByteOnce(byte value) {
+		txFull = false;
 
 		// Read the TX buffer space availability 
 		if (getDataRoot(TXLVL, myByte, 1) != 0) {
@@ -185,6 +568,7 @@ public class I2cUart {
 			}
 			if (myByte[0] == 0) {
 				// The buffer is not empty so return an error
+				txFull = true;
 				createErrorMessage("Unable to write byte. TX buffer is not empty");				
 				return -1;
 			}
@@ -202,6 +586,88 @@ public class I2cUart {
 	}
 	
 	
+	/*
+	 * Measure the link with the UART in internal loopback mode, so nothing reaches the Pi.
+	 * First single bytes are sent to measure the round trip time, then length bytes of test
+	 * patterns are sent in bursts of MAX_I2C_READ bytes to measure the throughput and error rate.
+	 * The results are stored in result. MCR is restored and both FIFOs are reset afterwards,
+	 * so anything the Pi sent in the meantime is dropped.
+	 * Return 0 if success, -1 if the UART couldn't be put in loopback mode.
+	 */
+	public int calibrate(int length, LinkCalibration result) {
+		result.reset(baudRate);
+		if (getDataRoot(MCR, myByte, 1) != 0) {
+			createErrorMessage("Unable to read register MCR over I2C");
+			return -1;
+		}
+		byte mcr = myByte[0];
+		if (sendDataRoot(MCR, (byte)(mcr | MCR_LOOPBACK)) != 0) {
+			createErrorMessage("Unable to enable loopback through MCR");
+			return -1;
+		}
+		sendDataRoot(FCR, (byte)(FCR_ENABLE_FIFO | FCR_RESET_RX | FCR_RESET_TX));
+		// Clear an overrun left over from before
+		checkLineStatus();
+
+		byte[] sent = new byte [MAX_I2C_READ];
+		byte[] received = new byte [MAX_I2C_READ];
+
+		for (int i=0; i<CALIBRATION_ROUND_TRIPS; i++) {
+			sent[0] = testPattern(i);
+			long start = System.currentTimeMillis();
+			readPos = 0;
+			boolean correct = (sendDataRoot(THR, sent[0]) == 0) && (readDataOnce(received, 1) == 0)
+					&& (received[0] == sent[0]);
+			result.addRoundTrip((int)(System.currentTimeMillis() - start), correct);
+		}
+
+		long start = System.currentTimeMillis();
+		for (int pos=0; pos<length; pos+=MAX_I2C_READ) {
+			int n = length - pos;
+			if (n > MAX_I2C_READ) {
+				n = MAX_I2C_READ;
+			}
+			for (int i=0; i<n; i++) {
+				sent[i] = testPattern(pos + i);
+			}
+			if (sendDataRoot(THR, sent, n) != 0) {
+				result.addBurst(n, n, false);
+				continue;
+			}
+			readPos = 0;
+			int ret = readDataOnce(received, n);
+			// On an overrun all n bytes were read but some were lost on the way
+			int count = readPos;
+			int errors = n - count;
+			for (int i=0; i<count; i++) {
+				if (received[i] != sent[i]) {
+					errors++;
+				}
+			}
+			if (ret == -2 && errors == 0) {
+				errors = 1;
+			}
+			result.addBurst(n, errors, ret == -2);
+		}
+		result.setElapsed((int)(System.currentTimeMillis() - start));
+
+		// Back to normal operation
+		if (sendDataRoot(MCR, mcr) != 0) {
+			createErrorMessage("Unable to restore MCR after calibration");
+			return -1;
+		}
+		sendDataRoot(FCR, (byte)(FCR_ENABLE_FIFO | FCR_RESET_RX | FCR_RESET_TX));
+		return 0;
+	}
+
+	/*
+	 * Byte i of the calibration data. Walks through all byte values with the bits
+	 * toggling between neighbours (0x55/0xAA) so stuck or swapped bits show up.
+	 */
+	private static byte testPattern(int i) {
+		return (byte)(((i & 1) == 0 ? 0x55 : 0xAA) ^ (i >> 1));
+	}
+
 	/*
 	 * Check that UART is connected and operational 
 	 */
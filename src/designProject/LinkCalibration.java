@@ -0,0 +1,126 @@
+package designProject;
+
+/*
+ * Results of I2cUart.calibrate, which sends test patterns through the UART in internal loopback mode.
+ *
+ * The round trip time covers writing one byte to THR, the chip shifting it out and back in at the
+ * configured baudrate and reading it from RHR, i.e. the smallest delay any exchange with the Pi can have.
+ * The throughput is measured over bursts of bytes and can be compared with what the baudrate allows
+ * to spot a slow I2C bus or a degraded link.
+ */
+public class LinkCalibration {
+
+	// Every byte on the line takes a start bit, 8 data bits and a stop bit
+	private final int BITS_PER_BYTE = 10;
+
+	private int baudRate;
+
+	private int roundTrips;
+	private int roundTripMin; // ms
+	private int roundTripMax; // ms
+	private int roundTripSum; // ms
+
+	private int bytes;
+	private int errors;
+	private int overruns;
+	private int elapsed; // ms taken to transfer the bytes
+
+	public LinkCalibration() {
+		reset(0);
+	}
+
+	void reset(int baudRate) {
+		this.baudRate = baudRate;
+		roundTrips = 0;
+		roundTripMin = Integer.MAX_VALUE;
+		roundTripMax = 0;
+		roundTripSum = 0;
+		bytes = 0;
+		errors = 0;
+		overruns = 0;
+		elapsed = 0;
+	}
+
+	void addRoundTrip(int time, boolean correct) {
+		roundTrips++;
+		roundTripSum += time;
+		if (time < roundTripMin) {
+			roundTripMin = time;
+		}
+		if (time > roundTripMax) {
+			roundTripMax = time;
+		}
+		if (!correct) {
+			errors++;
+		}
+	}
+
+	/*
+	 * Add a burst of length bytes of which errors were missing or different from what was sent
+	 */
+	void addBurst(int length, int errors, boolean overrun) {
+		bytes += length;
+		this.errors += errors;
+		if (overrun) {
+			overruns++;
+		}
+	}
+
+	void setElapsed(int elapsed) {
+		this.elapsed = elapsed;
+	}
+
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	public int getRoundTripMin() {
+		return roundTrips == 0 ? 0 : roundTripMin;
+	}
+
+	public int getRoundTripMax() {
+		return roundTripMax;
+	}
+
+	public int getRoundTripAverage() {
+		return roundTrips == 0 ? 0 : roundTripSum/roundTrips;
+	}
+
+	/*
+	 * Number of bytes that went through the UART per second during the bursts
+	 */
+	public int getBytesPerSecond() {
+		// The clock has a resolution of 1 ms
+		int ms = elapsed < 1 ? 1 : elapsed;
+		return (int)((bytes*1000L)/ms);
+	}
+
+	/*
+	 * Number of bytes per second the baudrate allows
+	 */
+	public int getExpectedBytesPerSecond() {
+		return baudRate/BITS_PER_BYTE;
+	}
+
+	/*
+	 * Fraction of the bytes sent (bursts and round trips) that were lost or corrupted
+	 */
+	public float getErrorRate() {
+		int total = bytes + roundTrips;
+		return total == 0 ? 0 : (float)errors/total;
+	}
+
+	public int getErrors() {
+		return errors;
+	}
+
+	public int getOverruns() {
+		return overruns;
+	}
+
+	public String toString() {
+		return "rtt: " + getRoundTripMin() + "/" + getRoundTripAverage() + "/" + roundTripMax + " ms "
+				+ getBytesPerSecond() + "/" + getExpectedBytesPerSecond() + " B/s errors: " + errors
+				+ " overruns: " + overruns;
+	}
+}
@@ -0,0 +1,343 @@
+package designProject;
+
+/*
+ * Groups the distances returned by theNextSensor.getDistance(int[][], int) into objects and follows
+ * the objects from frame to frame.
+ *
+ * Segmentation is a single pass over the bins: neighbouring bins with a distance that differs by no more
+ * than the gap belong to the same object, and bins without an echo (-1) end an object. Every object gets
+ * its extent in image columns and its mean distance.
+ *
+ * The objects of a new frame are matched to the tracks of the previous frames greedily, closest pair
+ * first, within a distance and column gate. A matched track keeps its id and updates a smoothed velocity
+ * towards or away from the robot. Objects without a track start a new one, and tracks not seen for more
+ * than maxAge frames are dropped. All state is kept in arrays allocated up front, so update() doesn't
+ * allocate and can run at the full frame rate of the sensor.
+ */
+public class ObjectTracker {
+
+	public static final int MAX_OBJECTS = 16;
+
+	// Weight of a new velocity measurement in the smoothed velocity
+	private final float VELOCITY_ALPHA = 0.5f;
+
+	private int gap; // largest distance step between bins of the same object
+	private int maxDistanceJump; // largest distance change of a track between two frames
+	private int maxColumnJump; // largest column change of a track between two frames
+	private int maxAge; // frames a track is kept without being seen
+
+	// Objects of the last frame
+	private int segmentCount;
+	private int[] segStartX;
+	private int[] segEndX;
+	private int[] segDistance;
+	private int[] segId; // id of the track the object was assigned to, -1 if none
+
+	// Tracks
+	private int trackCount;
+	private int nextId;
+	private int[] trackId;
+	private int[] trackStartX;
+	private int[] trackEndX;
+	private int[] trackDistance;
+	private float[] trackVelocity; // distance units per second, negative when approaching
+	private int[] trackTime; // time the track was last seen
+	private int[] trackAge; // frames since the track was last seen
+	private int[] trackHits; // frames the track was seen in
+
+	// Costs of all track/object pairs, -1 if outside of the gate
+	private int[] cost;
+
+	private String errorMessage;
+
+	/*
+	 * gap: largest distance step between neighbouring bins of the same object
+	 * maxDistanceJump, maxColumnJump: how far an object may move between two frames and still be matched
+	 * maxAge: number of frames a track is kept after the object was last seen
+	 */
+	public ObjectTracker(int gap, int maxDistanceJump, int maxColumnJump, int maxAge) {
+		this.gap = gap;
+		this.maxDistanceJump = maxDistanceJump;
+		this.maxColumnJump = maxColumnJump < 1 ? 1 : maxColumnJump;
+		this.maxAge = maxAge;
+
+		segStartX = new int [MAX_OBJECTS];
+		segEndX = new int [MAX_OBJECTS];
+		segDistance = new int [MAX_OBJECTS];
+		segId = new int [MAX_OBJECTS];
+
+		trackId = new int [MAX_OBJECTS];
+		trackStartX = new int [MAX_OBJECTS];
+		trackEndX = new int [MAX_OBJECTS];
+		trackDistance = new int [MAX_OBJECTS];
+		trackVelocity = new float [MAX_OBJECTS];
+		trackTime = new int [MAX_OBJECTS];
+		trackAge = new int [MAX_OBJECTS];
+		trackHits = new int [MAX_OBJECTS];
+
+		cost = new int [MAX_OBJECTS*MAX_OBJECTS];
+		errorMessage = "";
+		clear();
+	}
+
+	private void createErrorMessage(String msg) {
+		errorMessage = "ObjectTracker: " + msg;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/*
+	 * Drop all tracks. Ids continue from where they were.
+	 */
+	public void clear() {
+		segmentCount = 0;
+		trackCount = 0;
+	}
+
+	/*
+	 * Add a frame taken at the given time in ms, e.g. theNextSensor.getCaptureTime().
+	 * If the time is -1 (getCaptureTime without synchronized timestamps) the time the frame is
+	 * added is used instead, which is late by the transfer time but still gives the velocities.
+	 * dist[0] holds the image columns and dist[1] the distances.
+	 * Return the number of tracks, or -1 if the array is too small.
+	 */
+	public int update(int[][] dist, int num, int time) {
+		if (dist.length < 2 || dist[0].length < num || dist[1].length < num) {
+			createErrorMessage("update: distance array is smaller than " + num);
+			return -1;
+		}
+		if (time < 0) {
+			time = (int)System.currentTimeMillis();
+		}
+		segment(dist, num);
+		associate(time);
+		return trackCount;
+	}
+
+	/*
+	 * Split the bins into objects in one pass
+	 */
+	private void segment(int[][] dist, int num) {
+		segmentCount = 0;
+		int sum = 0;
+		int count = 0;
+		int prev = -1;
+		for (int i=0; i<num; i++) {
+			int d = dist[1][i];
+			if (count > 0 && (d < 0 || Math.abs(d - prev) > gap)) {
+				// the current object ends before bin i
+				segDistance[segmentCount] = sum/count;
+				segmentCount++;
+				count = 0;
+			}
+			if (d < 0) {
+				continue;
+			}
+			if (count == 0) {
+				if (segmentCount == MAX_OBJECTS) {
+					// no room for more objects in this frame
+					return;
+				}
+				segStartX[segmentCount] = dist[0][i];
+				sum = 0;
+			}
+			segEndX[segmentCount] = dist[0][i];
+			sum += d;
+			count++;
+			prev = d;
+		}
+		if (count > 0) {
+			segDistance[segmentCount] = sum/count;
+			segmentCount++;
+		}
+	}
+
+	/*
+	 * Match the objects of the frame to the tracks, closest pairs first
+	 */
+	private void associate(int time) {
+		// Cost of every pair within the gate. Column changes are scaled to the distance gate.
+		for (int t=0; t<trackCount; t++) {
+			int dt = time - trackTime[t];
+			int predicted = trackDistance[t] + (int)(trackVelocity[t]*dt/1000);
+			int center = (trackStartX[t] + trackEndX[t])/2;
+			for (int s=0; s<segmentCount; s++) {
+				int dd = Math.abs(segDistance[s] - predicted);
+				int dx = Math.abs((segStartX[s] + segEndX[s])/2 - center);
+				if (dd > maxDistanceJump || dx > maxColumnJump) {
+					cost[t*MAX_OBJECTS + s] = -1;
+				} else {
+					cost[t*MAX_OBJECTS + s] = dd + (dx*maxDistanceJump)/maxColumnJump;
+				}
+			}
+		}
+		for (int s=0; s<segmentCount; s++) {
+			segId[s] = -1;
+		}
+		for (int t=0; t<trackCount; t++) {
+			// mark the track as not seen yet in this frame
+			trackAge[t]++;
+		}
+
+		while (true) {
+			int best = -1;
+			int bestT = 0;
+			int bestS = 0;
+			for (int t=0; t<trackCount; t++) {
+				if (trackAge[t] == 0) {
+					continue; // already matched
+				}
+				for (int s=0; s<segmentCount; s++) {
+					int c = cost[t*MAX_OBJECTS + s];
+					if (c >= 0 && segId[s] < 0 && (best < 0 || c < best)) {
+						best = c;
+						bestT = t;
+						bestS = s;
+					}
+				}
+			}
+			if (best < 0) {
+				break;
+			}
+			segId[bestS] = trackId[bestT];
+			updateTrack(bestT, bestS, time);
+		}
+
+		// Drop the tracks that haven't been seen for too long
+		for (int t=trackCount-1; t>=0; t--) {
+			if (trackAge[t] > maxAge) {
+				removeTrack(t);
+			}
+		}
+
+		// New objects start new tracks
+		for (int s=0; s<segmentCount; s++) {
+			if (segId[s] < 0 && trackCount < MAX_OBJECTS) {
+				int t = trackCount++;
+				trackId[t] = nextId++;
+				trackStartX[t] = segStartX[s];
+				trackEndX[t] = segEndX[s];
+				trackDistance[t] = segDistance[s];
+				trackVelocity[t] = 0;
+				trackTime[t] = time;
+				trackAge[t] = 0;
+				trackHits[t] = 1;
+				segId[s] = trackId[t];
+			}
+		}
+	}
+
+	private void updateTrack(int t, int s, int time) {
+		int dt = time - trackTime[t];
+		if (dt > 0) {
+			float v = (segDistance[s] - trackDistance[t])*1000f/dt;
+			if (trackHits[t] == 1) {
+				trackVelocity[t] = v;
+			} else {
+				trackVelocity[t] += VELOCITY_ALPHA*(v - trackVelocity[t]);
+			}
+		}
+		trackStartX[t] = segStartX[s];
+		trackEndX[t] = segEndX[s];
+		trackDistance[t] = segDistance[s];
+		trackTime[t] = time;
+		trackAge[t] = 0;
+		trackHits[t]++;
+	}
+
+	/*
+	 * Remove track t by moving the last track into its place
+	 */
+	private void removeTrack(int t) {
+		int last = --trackCount;
+		trackId[t] = trackId[last];
+		trackStartX[t] = trackStartX[last];
+		trackEndX[t] = trackEndX[last];
+		trackDistance[t] = trackDistance[last];
+		trackVelocity[t] = trackVelocity[last];
+		trackTime[t] = trackTime[last];
+		trackAge[t] = trackAge[last];
+		trackHits[t] = trackHits[last];
+	}
+
+	/*
+	 * Number of objects found in the last frame
+	 */
+	public int getObjectCount() {
+		return segmentCount;
+	}
+
+	public int getObjectStartX(int i) {
+		return segStartX[i];
+	}
+
+	public int getObjectEndX(int i) {
+		return segEndX[i];
+	}
+
+	public int getObjectDistance(int i) {
+		return segDistance[i];
+	}
+
+	/*
+	 * Id of the track object i of the last frame belongs to, or -1 if there was no room for a new track
+	 */
+	public int getObjectId(int i) {
+		return segId[i];
+	}
+
+	/*
+	 * Number of tracks, including the ones not seen in the last frame
+	 */
+	public int getTrackCount() {
+		return trackCount;
+	}
+
+	/*
+	 * Index of the track with the given id, or -1 if it was dropped
+	 */
+	public int findTrack(int id) {
+		for (int t=0; t<trackCount; t++) {
+			if (trackId[t] == id) {
+				return t;
+			}
+		}
+		return -1;
+	}
+
+	public int getId(int t) {
+		return trackId[t];
+	}
+
+	public int getStartX(int t) {
+		return trackStartX[t];
+	}
+
+	public int getEndX(int t) {
+		return trackEndX[t];
+	}
+
+	public int getDistance(int t) {
+		return trackDistance[t];
+	}
+
+	/*
+	 * Smoothed change of the distance in distance units per second. Negative when the object approaches.
+	 */
+	public float getVelocity(int t) {
+		return trackVelocity[t];
+	}
+
+	/*
+	 * Number of frames since the track was last seen (0 if it was seen in the last frame)
+	 */
+	public int getAge(int t) {
+		return trackAge[t];
+	}
+
+	public int getHits(int t) {
+		return trackHits[t];
+	}
+}
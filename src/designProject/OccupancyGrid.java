@@ -0,0 +1,275 @@
+package designProject;
+
+/*
+ * Local obstacle map built incrementally from the scans returned by theNextSensor.getDistance(int[][], int).
+ *
+ * The map is a square grid of cells stored in a single byte array. Each cell holds the log-odds of being
+ * occupied: positive values mean occupied, negative values mean free and 0 means unknown. Every scan casts
+ * one ray per distance from the robot pose. Cells along the ray are made more likely free and the cell at
+ * the measured distance is made more likely occupied. The rays are traced with integer (Bresenham) steps
+ * over the cells.
+ *
+ * The pose is supplied by the caller (e.g. from odometry). World coordinates use the same unit as the
+ * distances. The grid covers a fixed square centered on the world origin, so memory stays at size*size bytes;
+ * anything outside of it is ignored.
+ */
+public class OccupancyGrid {
+
+	public static final int MAX_SIZE = 128; // 16 KB
+
+	// Log-odds are scaled so that 10 is roughly 1.0
+	private final int LOG_ODDS_MAX = 100;
+	private final int LOG_ODDS_MIN = -100;
+	private final int HIT_UPDATE = 30;
+	private final int MISS_UPDATE = -8;
+	private final int OCCUPIED_THRESHOLD = 40;
+
+	// Horizontal field of view of the camera in radians
+	public static final float DEFAULT_FOV = 0.934f; // 53.5 degrees
+
+	private byte[] cells;
+	private int size;
+	private int cellSize;
+	private int originX; // world coordinate of the left edge of the grid
+	private int originY; // world coordinate of the bottom edge of the grid
+	private float fov;
+	private int maxRange;
+
+	// Robot pose
+	private int poseX;
+	private int poseY;
+	private float poseHeading; // radians, counter-clockwise from the x axis
+
+	// Result of the last nearest obstacle query
+	private int nearestX;
+	private int nearestY;
+
+	private String errorMessage;
+
+	/*
+	 * size: number of cells along each side (up to MAX_SIZE)
+	 * cellSize: length of the side of a cell in distance units
+	 * maxRange: distances at or beyond this are treated as "nothing found"
+	 */
+	public OccupancyGrid(int size, int cellSize, int maxRange) {
+		if (size < 1) {
+			size = 1;
+		} else if (size > MAX_SIZE) {
+			size = MAX_SIZE;
+		}
+		this.size = size;
+		this.cellSize = cellSize < 1 ? 1 : cellSize;
+		this.maxRange = maxRange;
+		cells = new byte[size*size];
+		originX = -(size*this.cellSize)/2;
+		originY = -(size*this.cellSize)/2;
+		fov = DEFAULT_FOV;
+		errorMessage = "";
+	}
+
+	private void createErrorMessage(String msg) {
+		errorMessage = "OccupancyGrid: " + msg;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	public void setFieldOfView(float radians) {
+		fov = radians;
+	}
+
+	public void setPose(int x, int y, float heading) {
+		poseX = x;
+		poseY = y;
+		poseHeading = heading;
+	}
+
+	public void clear() {
+		for (int i=0; i<cells.length; i++) {
+			cells[i] = 0;
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getCellSize() {
+		return cellSize;
+	}
+
+	private int toCellX(int x) {
+		return floorDiv(x - originX, cellSize);
+	}
+
+	private int toCellY(int y) {
+		return floorDiv(y - originY, cellSize);
+	}
+
+	private static int floorDiv(int a, int b) {
+		int q = a / b;
+		if ((a % b != 0) && (a < 0)) {
+			q--;
+		}
+		return q;
+	}
+
+	private boolean inside(int cx, int cy) {
+		return cx >= 0 && cy >= 0 && cx < size && cy < size;
+	}
+
+	private void addLogOdds(int cx, int cy, int delta) {
+		int i = cy*size + cx;
+		int v = cells[i] + delta;
+		if (v > LOG_ODDS_MAX) {
+			v = LOG_ODDS_MAX;
+		} else if (v < LOG_ODDS_MIN) {
+			v = LOG_ODDS_MIN;
+		}
+		cells[i] = (byte)v;
+	}
+
+	/*
+	 * Return the log-odds of the cell, or 0 (unknown) outside of the grid
+	 */
+	public int getLogOdds(int cx, int cy) {
+		if (!inside(cx, cy)) {
+			return 0;
+		}
+		return cells[cy*size + cx];
+	}
+
+	public boolean isOccupied(int x, int y) {
+		return getLogOdds(toCellX(x), toCellY(y)) >= OCCUPIED_THRESHOLD;
+	}
+
+	/*
+	 * Add a scan taken at the current pose. dist[0] holds the image columns and dist[1] the distances.
+	 * Distances of -1 (no echo) are skipped because they can't be told apart from a dropout.
+	 * Return the number of rays added.
+	 */
+	public int update(int[][] dist, int num) {
+		if (dist.length < 2 || dist[0].length < num || dist[1].length < num) {
+			createErrorMessage("update: distance array is smaller than " + num);
+			return -1;
+		}
+		int rays = 0;
+		for (int i=0; i<num; i++) {
+			int d = dist[1][i];
+			if (d < 0) {
+				continue;
+			}
+			// Columns to the right of the center of the image are to the right of the robot
+			float bearing = poseHeading + fov*(theNextSensor.xpixels/2 - dist[0][i])/theNextSensor.xpixels;
+			addRay(bearing, d);
+			rays++;
+		}
+		return rays;
+	}
+
+	/*
+	 * Trace a ray from the robot along the bearing for the given distance
+	 */
+	private void addRay(float bearing, int d) {
+		boolean hit = d < maxRange;
+		if (!hit) {
+			d = maxRange;
+		}
+		int x0 = toCellX(poseX);
+		int y0 = toCellY(poseY);
+		int x1 = toCellX(poseX + (int)(d*Math.cos(bearing)));
+		int y1 = toCellY(poseY + (int)(d*Math.sin(bearing)));
+
+		int dx = x1 > x0 ? x1 - x0 : x0 - x1;
+		int dy = y1 > y0 ? y1 - y0 : y0 - y1;
+		int sx = x1 > x0 ? 1 : -1;
+		int sy = y1 > y0 ? 1 : -1;
+		int err = dx - dy;
+		int x = x0;
+		int y = y0;
+
+		while (x != x1 || y != y1) {
+			if (inside(x, y)) {
+				addLogOdds(x, y, MISS_UPDATE);
+			} else if (x != x0 || y != y0) {
+				// the ray has left the grid
+				return;
+			}
+			int e2 = 2*err;
+			if (e2 > -dy) {
+				err -= dy;
+				x += sx;
+			}
+			if (e2 < dx) {
+				err += dx;
+				y += sy;
+			}
+		}
+		if (inside(x, y)) {
+			addLogOdds(x, y, hit ? HIT_UPDATE : MISS_UPDATE);
+		}
+	}
+
+	/*
+	 * Return the distance from the robot to the nearest occupied cell within maxDistance,
+	 * or -1 if there is none. The position of the obstacle is available from getNearestX/Y.
+	 * Only the cells around the robot are searched, ring by ring, so nearby obstacles are found quickly.
+	 */
+	public int getNearestObstacle(int maxDistance) {
+		int cx = toCellX(poseX);
+		int cy = toCellY(poseY);
+		int maxRing = maxDistance/cellSize + 1;
+		// Rings beyond the farthest grid cell are empty
+		int farthest = Math.max(Math.max(cx, size-1 - cx), Math.max(cy, size-1 - cy));
+		if (maxRing > farthest) {
+			maxRing = farthest;
+		}
+		int best = Integer.MAX_VALUE; // squared distance in cells
+
+		for (int r=0; r<=maxRing; r++) {
+			// Every cell of ring r is at least r cells away
+			if (r*r > best) {
+				break;
+			}
+			for (int i=-r; i<=r; i++) {
+				// top and bottom rows, then left and right columns without the corners
+				best = checkNearest(cx + i, cy - r, cx, cy, best);
+				best = checkNearest(cx + i, cy + r, cx, cy, best);
+				if (i != -r && i != r) {
+					best = checkNearest(cx - r, cy + i, cx, cy, best);
+					best = checkNearest(cx + r, cy + i, cx, cy, best);
+				}
+			}
+		}
+		if (best == Integer.MAX_VALUE) {
+			return -1;
+		}
+		int d = (int)(Math.sqrt(best)*cellSize);
+		if (d > maxDistance) {
+			return -1;
+		}
+		return d;
+	}
+
+	private int checkNearest(int x, int y, int cx, int cy, int best) {
+		if (!inside(x, y) || cells[y*size + x] < OCCUPIED_THRESHOLD) {
+			return best;
+		}
+		int d2 = (x-cx)*(x-cx) + (y-cy)*(y-cy);
+		if (d2 < best) {
+			nearestX = originX + x*cellSize + cellSize/2;
+			nearestY = originY + y*cellSize + cellSize/2;
+			return d2;
+		}
+		return best;
+	}
+
+	public int getNearestX() {
+		return nearestX;
+	}
+
+	public int getNearestY() {
+		return nearestY;
+	}
+}
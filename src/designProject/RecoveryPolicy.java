@@ -0,0 +1,183 @@
+package designProject;
+
+/*
+ * Retry and recovery settings shared by I2cUart and theNextSensor, together with
+ * counters of what recovery actions were taken.
+ *
+ * Recovery steps in order of escalation:
+ *  1. retry the failed UART operation up to maxRetries times, waiting with an exponential backoff
+ *  2. reset the UART RX/TX FIFOs through FCR so stale or partial data is dropped
+ *  3. re-assert the current mode on the Pi and request the whole frame again, up to maxFrameRetries
+ *     times. The UART operations of a repeated frame are tried only once, so a bad frame costs at
+ *     most (maxRetries + 1) + maxFrameRetries operation timeouts.
+ *  4. re-initialize the UART after reinitThreshold failed operations without a successful read in between.
+ *     Writes don't count as success: when the UART lost its configuration the writes still go through
+ *     and only the responses stop coming.
+ */
+public class RecoveryPolicy {
+
+	private int maxRetries;
+	private int maxFrameRetries;
+	private int initialBackoff; // ms
+	private int maxBackoff; // ms
+	private int reinitThreshold; // 0 disables re-initialization
+
+	private int consecutiveFailures;
+	private boolean frameRetry; // a frame is being requested again
+
+	// Statistics
+	private int retries;
+	private int frameRetries;
+	private int recovered;
+	private int failures;
+	private int fifoResets;
+	private int modeReasserts;
+	private int reinits;
+
+	/*
+	 * Default policy: 2 retries with a 2 ms backoff doubling up to 20 ms, 1 frame retry,
+	 * re-init after 3 failed operations without a successful read
+	 */
+	public RecoveryPolicy() {
+		this(2, 2, 20, 1, 3);
+	}
+
+	public RecoveryPolicy(int maxRetries, int initialBackoff, int maxBackoff, int reinitThreshold) {
+		this(maxRetries, initialBackoff, maxBackoff, 1, reinitThreshold);
+	}
+
+	public RecoveryPolicy(int maxRetries, int initialBackoff, int maxBackoff, int maxFrameRetries, int reinitThreshold) {
+		this.maxRetries = maxRetries < 0 ? 0 : maxRetries;
+		this.maxFrameRetries = maxFrameRetries < 0 ? 0 : maxFrameRetries;
+		this.initialBackoff = initialBackoff < 0 ? 0 : initialBackoff;
+		this.maxBackoff = maxBackoff < initialBackoff ? initialBackoff : maxBackoff;
+		this.reinitThreshold = reinitThreshold < 0 ? 0 : reinitThreshold;
+		resetStatistics();
+	}
+
+	/*
+	 * Policy that never retries or recovers, i.e. every failure is returned straight away
+	 */
+	public static RecoveryPolicy none() {
+		return new RecoveryPolicy(0, 0, 0, 0, 0);
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public int getMaxFrameRetries() {
+		return maxFrameRetries;
+	}
+
+	/*
+	 * Number of times a UART operation may be retried right now: none while a frame is being
+	 * requested again, as the frame retry is already the next step of the recovery
+	 */
+	int getOperationRetries() {
+		return frameRetry ? 0 : maxRetries;
+	}
+
+	void setFrameRetry(boolean active) {
+		frameRetry = active;
+	}
+
+	/*
+	 * Return the delay in ms before the given retry (0 is the first retry)
+	 */
+	public int getBackoff(int retry) {
+		int backoff = initialBackoff;
+		for (int i=0; i<retry && backoff < maxBackoff; i++) {
+			backoff *= 2;
+		}
+		return backoff > maxBackoff ? maxBackoff : backoff;
+	}
+
+	void recordRetry() {
+		retries++;
+	}
+
+	void recordFrameRetry() {
+		frameRetries++;
+	}
+
+	void recordFifoReset() {
+		fifoResets++;
+	}
+
+	void recordModeReassert() {
+		modeReasserts++;
+	}
+
+	void recordReinit() {
+		reinits++;
+		consecutiveFailures = 0;
+	}
+
+	/*
+	 * Record a successful operation. retried is true if it only succeeded after retrying.
+	 * Only a read shows the UART works, so only a read clears the failures counted towards re-init.
+	 */
+	void recordSuccess(boolean retried, boolean read) {
+		if (retried) {
+			recovered++;
+		}
+		if (read) {
+			consecutiveFailures = 0;
+		}
+	}
+
+	/*
+	 * Record an operation that failed after all the retries.
+	 * Return true if the UART should be re-initialized.
+	 */
+	boolean recordFailure() {
+		failures++;
+		consecutiveFailures++;
+		return (reinitThreshold > 0) && (consecutiveFailures >= reinitThreshold);
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	public int getFrameRetries() {
+		return frameRetries;
+	}
+
+	public int getRecovered() {
+		return recovered;
+	}
+
+	public int getFailures() {
+		return failures;
+	}
+
+	public int getFifoResets() {
+		return fifoResets;
+	}
+
+	public int getModeReasserts() {
+		return modeReasserts;
+	}
+
+	public int getReinits() {
+		return reinits;
+	}
+
+	public void resetStatistics() {
+		consecutiveFailures = 0;
+		retries = 0;
+		frameRetries = 0;
+		recovered = 0;
+		failures = 0;
+		fifoResets = 0;
+		modeReasserts = 0;
+		reinits = 0;
+	}
+
+	public String toString() {
+		return "retries: " + retries + " frame retries: " + frameRetries + " recovered: " + recovered
+				+ " failed: " + failures + " fifo resets: " + fifoResets + " mode: " + modeReasserts + " reinit: " + reinits;
+	}
+}
@@ -0,0 +1,18 @@
+package designProject;
+
+/*
+ * Access to the registers of the SC16IS750 chip. Implemented by piSimulator (in-process simulation)
+ * and by SocketTransport (simulation running in a SimulatorServer process).
+ * Return values follow lejos.nxt.I2CSensor: 0 if success, non-zero otherwise.
+ */
+public interface RegisterBus {
+
+	public int sendData(int register, byte value);
+
+	/*
+	 * Write length bytes to the same register, e.g. to fill the TX FIFO
+	 */
+	public int sendData(int register, byte[] buf, int length);
+
+	public int getData(int register, byte[] buf, int length);
+}
@@ -0,0 +1,424 @@
+package designProject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Generates reproducible distance data for piSimulator.
+ *
+ * The scene is a set of objects, each covering a range of columns of the camera image and moving
+ * both sideways (x) and in depth (distance). Objects bounce back when they reach the image edge or the
+ * range limits. A column can be covered by several objects; they are reported as echoes sorted from
+ * the nearest to the farthest, up to the configured echo count.
+ *
+ * The scene only changes at the configured update rate. Gaussian noise and dropouts (-1) are derived
+ * from the seed, the update tick and the column, so the same seed always gives the same data regardless
+ * of how often or in which order the columns are queried.
+ *
+ * By default the scene is clock driven: piSimulator advances it to the wall-clock time before every
+ * measurement. Calling step() or setTick() switches it to stepped mode, in which only those calls move
+ * the scene, so a run sees the same data no matter how fast it queries. setClockDriven() switches back.
+ *
+ * Script file format (one statement per line, '#' starts a comment):
+ * ------------------------
+ *  seed <n>                                  <- seed for the noise, dropouts and random objects
+ *  rate <hz>                                 <- scene update rate
+ *  noise <sigma>                             <- standard deviation of the Gaussian noise on each distance
+ *  dropout <p>                               <- probability (0-1) that a distance is reported as -1
+ *  echoes <n>                                <- number of echoes reported per column (1-MAX_ECHOES)
+ *  range <min> <max>                         <- distances outside the range are not reported
+ *  object <x> <dist> <width> <vx> <vdist>    <- object centered at column x, velocities are per second
+ *  random <n>                                <- add n random objects generated from the seed
+ */
+public class SceneGenerator {
+
+	public static final int MAX_OBJECTS = 16;
+	public static final int MAX_ECHOES = 8;
+	public static final int xpixels = 1944;
+
+	// Objects in the scene. Positions are at tick 0, velocities are per second
+	private float[] objX;
+	private float[] objDist;
+	private float[] objWidth;
+	private float[] objVelX;
+	private float[] objVelDist;
+	private int numObjects;
+
+	private long seed;
+	private int updateRate;
+	private float noise;
+	private float dropout;
+	private int echoes;
+	private int minRange;
+	private int maxRange;
+
+	private int tick;
+	private long startTime;
+	private boolean stepped; // the tick only changes through step() and setTick()
+
+	// Scratch space used to sort the echoes of a column
+	private float[] echoDist;
+
+	private String errorMessage;
+
+	/*
+	 * Create an empty scene with default settings
+	 */
+	public SceneGenerator() {
+		objX = new float[MAX_OBJECTS];
+		objDist = new float[MAX_OBJECTS];
+		objWidth = new float[MAX_OBJECTS];
+		objVelX = new float[MAX_OBJECTS];
+		objVelDist = new float[MAX_OBJECTS];
+		numObjects = 0;
+
+		seed = 1;
+		updateRate = 20;
+		noise = 0;
+		dropout = 0;
+		echoes = 1;
+		minRange = 50;
+		maxRange = 4000;
+
+		tick = 0;
+		startTime = -1;
+		stepped = false;
+		echoDist = new float[MAX_OBJECTS];
+		errorMessage = "";
+	}
+
+	/*
+	 * Create a scene of random objects generated from the given seed
+	 */
+	public SceneGenerator(long seed, int numObjects) {
+		this();
+		this.seed = seed;
+		noise = 5;
+		dropout = 0.02f;
+		addRandomObjects(numObjects);
+	}
+
+	/*
+	 * Create a scene from a script. See the class comment for the format.
+	 */
+	public SceneGenerator(InputStream script) throws IOException {
+		this();
+		parseScript(script);
+	}
+
+	public static SceneGenerator fromFile(String fileName) throws IOException {
+		InputStream in = new FileInputStream(new File(fileName));
+		try {
+			return new SceneGenerator(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void createErrorMessage(String msg) {
+		errorMessage = "SceneGenerator: " + msg;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/*
+	 * Add an object to the scene. Return the object index or -1 if the scene is full.
+	 */
+	public int addObject(float x, float dist, float width, float velX, float velDist) {
+		if (numObjects >= MAX_OBJECTS) {
+			createErrorMessage("Unable to add object. Maximum is " + MAX_OBJECTS);
+			return -1;
+		}
+		objX[numObjects] = x;
+		objDist[numObjects] = dist;
+		objWidth[numObjects] = width;
+		objVelX[numObjects] = velX;
+		objVelDist[numObjects] = velDist;
+		return numObjects++;
+	}
+
+	public void addRandomObjects(int n) {
+		for (int i=0; i<n; i++) {
+			// A separate hash per attribute (tick -1 is never used by getDistance) so the attributes are independent
+			float x = uniform(hash(seed, -1, numObjects, 0)) * xpixels;
+			float dist = minRange + uniform(hash(seed, -1, numObjects, 1)) * (maxRange - minRange);
+			float width = 40 + uniform(hash(seed, -1, numObjects, 2)) * 300;
+			float velX = (uniform(hash(seed, -1, numObjects, 3)) - 0.5f) * 400;
+			float velDist = (uniform(hash(seed, -1, numObjects, 4)) - 0.5f) * 800;
+			if (addObject(x, dist, width, velX, velDist) < 0) {
+				return;
+			}
+		}
+	}
+
+	public int getNumObjects() {
+		return numObjects;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setUpdateRate(int hz) {
+		updateRate = hz < 1 ? 1 : hz;
+	}
+
+	public int getUpdateRate() {
+		return updateRate;
+	}
+
+	public void setNoise(float sigma) {
+		noise = sigma < 0 ? 0 : sigma;
+	}
+
+	public void setDropout(float p) {
+		dropout = p < 0 ? 0 : (p > 1 ? 1 : p);
+	}
+
+	public void setEchoes(int n) {
+		echoes = n < 1 ? 1 : (n > MAX_ECHOES ? MAX_ECHOES : n);
+	}
+
+	public int getEchoes() {
+		return echoes;
+	}
+
+	public void setRange(int min, int max) {
+		minRange = min;
+		maxRange = max > min ? max : min + 1;
+	}
+
+	/*
+	 * Advance the scene to the given wall-clock time. The first call sets tick 0.
+	 */
+	public void update(long timeMs) {
+		if (startTime < 0) {
+			startTime = timeMs;
+		}
+		tick = (int)(((timeMs - startTime) * updateRate) / 1000);
+	}
+
+	/*
+	 * Advance the scene by one update and switch to stepped mode
+	 */
+	public void step() {
+		stepped = true;
+		tick++;
+	}
+
+	/*
+	 * Jump to the given update and switch to stepped mode
+	 */
+	public void setTick(int tick) {
+		stepped = true;
+		this.tick = tick;
+	}
+
+	/*
+	 * Let the scene follow the wall clock again. The time of the next update becomes tick 0.
+	 */
+	public void setClockDriven() {
+		stepped = false;
+		startTime = -1;
+		tick = 0;
+	}
+
+	/*
+	 * True if the scene is advanced by update(), false in stepped mode
+	 */
+	public boolean isClockDriven() {
+		return !stepped;
+	}
+
+	public int getTick() {
+		return tick;
+	}
+
+	/*
+	 * Wall-clock time in ms at which the current tick started, or -1 if the scene isn't clock driven
+	 */
+	public long getTickTime() {
+		if (stepped || startTime < 0) {
+			return -1;
+		}
+		return startTime + ((long)tick * 1000) / updateRate;
+	}
+
+	/*
+	 * Fold a position moving in a straight line back into [min, max] so the object bounces at the edges
+	 */
+	private static float bounce(float pos, float min, float max) {
+		float span = max - min;
+		float m = (pos - min) % (2*span);
+		if (m < 0) {
+			m += 2*span;
+		}
+		return min + (m > span ? 2*span - m : m);
+	}
+
+	/*
+	 * Return the distance of the given echo (0 is the nearest) at column x, or -1 if there is no echo.
+	 */
+	public int getDistance(int x, int echo) {
+		if (echo >= echoes) {
+			return -1;
+		}
+		float t = ((float)tick) / updateRate;
+
+		// Insertion sort of the distances of all the objects covering the column
+		int n = 0;
+		for (int i=0; i<numObjects; i++) {
+			float cx = bounce(objX[i] + objVelX[i]*t, 0, xpixels);
+			if (x < cx - objWidth[i]/2 || x > cx + objWidth[i]/2) {
+				continue;
+			}
+			float d = bounce(objDist[i] + objVelDist[i]*t, minRange, maxRange);
+			int j = n;
+			while (j > 0 && echoDist[j-1] > d) {
+				echoDist[j] = echoDist[j-1];
+				j--;
+			}
+			echoDist[j] = d;
+			n++;
+		}
+		if (echo >= n) {
+			return -1;
+		}
+
+		long h = hash(seed, tick, x, echo);
+		if (dropout > 0 && uniform(h) < dropout) {
+			return -1;
+		}
+		float d = echoDist[echo];
+		if (noise > 0) {
+			d += noise * gaussian(h >>> 20, h >>> 40);
+		}
+		if (d < minRange || d > maxRange) {
+			return -1;
+		}
+		return Math.round(d);
+	}
+
+	/*
+	 * Fill dist with the given echo for each of the num columns in x
+	 */
+	public void getDistances(int[] x, int[] dist, int num, int echo) {
+		for (int i=0; i<num; i++) {
+			dist[i] = getDistance(x[i], echo);
+		}
+	}
+
+	/*
+	 * SplitMix64 style mixing of the seed, tick, column and echo
+	 */
+	private static long hash(long seed, int tick, int x, int echo) {
+		long z = seed * 0x9E3779B97F4A7C15L + tick;
+		z = z * 0x9E3779B97F4A7C15L + x;
+		z = z * 0x9E3779B97F4A7C15L + echo;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/*
+	 * Uniform value in [0, 1) from the low 20 bits of h
+	 */
+	private static float uniform(long h) {
+		return ((int)(h & 0xFFFFF)) / (float)0x100000;
+	}
+
+	/*
+	 * Standard normal value using the Box-Muller transform
+	 */
+	private static float gaussian(long h1, long h2) {
+		float u1 = uniform(h1);
+		if (u1 < 1e-6f) {
+			u1 = 1e-6f;
+		}
+		float u2 = uniform(h2);
+		return (float)(Math.sqrt(-2 * Math.log(u1)) * Math.cos(2 * Math.PI * u2));
+	}
+
+	private void parseScript(InputStream in) throws IOException {
+		StringBuffer line = new StringBuffer();
+		String[] tokens = new String[7];
+		int lineNum = 0;
+		int c;
+		do {
+			c = in.read();
+			if (c != '\n' && c >= 0) {
+				if (c != '\r') {
+					line.append((char)c);
+				}
+				continue;
+			}
+			lineNum++;
+			int n = tokenize(line.toString(), tokens);
+			line.setLength(0);
+			if (n == 0) {
+				continue;
+			}
+			try {
+				parseStatement(tokens, n, lineNum);
+			} catch (NumberFormatException e) {
+				throw new IOException("SceneGenerator: Invalid number on line " + lineNum);
+			}
+		} while (c >= 0);
+	}
+
+	private void parseStatement(String[] tok, int n, int lineNum) throws IOException {
+		String cmd = tok[0];
+		if (cmd.equals("seed") && n == 2) {
+			setSeed(Long.parseLong(tok[1]));
+		} else if (cmd.equals("rate") && n == 2) {
+			setUpdateRate(Integer.parseInt(tok[1]));
+		} else if (cmd.equals("noise") && n == 2) {
+			setNoise(Float.parseFloat(tok[1]));
+		} else if (cmd.equals("dropout") && n == 2) {
+			setDropout(Float.parseFloat(tok[1]));
+		} else if (cmd.equals("echoes") && n == 2) {
+			setEchoes(Integer.parseInt(tok[1]));
+		} else if (cmd.equals("range") && n == 3) {
+			setRange(Integer.parseInt(tok[1]), Integer.parseInt(tok[2]));
+		} else if (cmd.equals("object") && n == 6) {
+			if (addObject(Float.parseFloat(tok[1]), Float.parseFloat(tok[2]), Float.parseFloat(tok[3]),
+					Float.parseFloat(tok[4]), Float.parseFloat(tok[5])) < 0) {
+				throw new IOException(errorMessage + " (line " + lineNum + ")");
+			}
+		} else if (cmd.equals("random") && n == 2) {
+			addRandomObjects(Integer.parseInt(tok[1]));
+		} else {
+			throw new IOException("SceneGenerator: Invalid statement '" + cmd + "' on line " + lineNum);
+		}
+	}
+
+	/*
+	 * Split a line into whitespace separated tokens, ignoring anything after '#'.
+	 * Return the number of tokens found.
+	 */
+	private static int tokenize(String line, String[] tokens) {
+		int n = 0;
+		int i = 0;
+		int len = line.length();
+		while (i < len && n < tokens.length) {
+			char c = line.charAt(i);
+			if (c == '#') {
+				break;
+			}
+			if (c == ' ' || c == '\t') {
+				i++;
+				continue;
+			}
+			int start = i;
+			while (i < len && line.charAt(i) != ' ' && line.charAt(i) != '\t' && line.charAt(i) != '#') {
+				i++;
+			}
+			tokens[n++] = line.substring(start, i);
+		}
+		return n;
+	}
+}
@@ -0,0 +1,189 @@
+package designProject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/*
+ * Runs piSimulator in its own process and serves the SC16IS750 register bus over a localhost TCP socket,
+ * so I2cUart can be tested with real cross-process scheduling and serialization (see SocketTransport).
+ *
+ * Every client connection gets its own thread and its own piSimulator, so several sensors can be
+ * simulated at once. With a seed, every client also gets its own SceneGenerator (seed + client number).
+ *
+ * Requests (one byte each unless noted):
+ * ------------------------
+ *  [OP_WRITE] [register] [len] [len data bytes]   <- no response
+ *  [OP_READ] [register] [len]                     <- response: [status] [len data bytes]
+ *
+ * Writes are posted: the client buffers them and sends them together with the next read, so a
+ * sequence of register writes followed by a read costs a single round trip. The status of a read
+ * is 0 if success, STATUS_READ_FAILED if the read failed and has STATUS_WRITE_FAILED set if one of
+ * the writes since the previous read failed.
+ *
+ * Usage: SimulatorServer [port] [seed] [objects]
+ */
+public class SimulatorServer implements Runnable {
+
+	public static final int DEFAULT_PORT = 5750;
+
+	static final byte OP_WRITE = 1;
+	static final byte OP_READ = 2;
+
+	static final byte STATUS_OK = 0;
+	static final byte STATUS_READ_FAILED = 1;
+	static final byte STATUS_WRITE_FAILED = 2;
+
+	// Longest register transfer of one request
+	static final int MAX_LEN = 255;
+
+	private final int DEFAULT_OBJECTS = 4;
+
+	private ServerSocket server;
+	private boolean useScene;
+	private long seed;
+	private int objects;
+	private int clients;
+
+	public SimulatorServer(int port) throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		useScene = false;
+		objects = DEFAULT_OBJECTS;
+	}
+
+	/*
+	 * Give every client a generated scene instead of the fixed distances of piSimulator
+	 */
+	public void setScene(long seed, int objects) {
+		useScene = true;
+		this.seed = seed;
+		this.objects = objects;
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/*
+	 * Accept clients until the server socket is closed
+	 */
+	public void run() {
+		while (true) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			clients++;
+			piSimulator sim = new piSimulator();
+			sim.setVerbose(false);
+			if (useScene) {
+				sim.setScene(new SceneGenerator(seed + clients, objects));
+			}
+			Thread thread = new Thread(new Client(clients, socket, sim));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void close() {
+		try {
+			server.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	/*
+	 * Serves the requests of one client
+	 */
+	private static class Client implements Runnable {
+
+		private int id;
+		private Socket socket;
+		private piSimulator sim;
+		private byte[] buf;
+
+		private int writes;
+		private int reads;
+
+		Client(int id, Socket socket, piSimulator sim) {
+			this.id = id;
+			this.socket = socket;
+			this.sim = sim;
+			buf = new byte [MAX_LEN];
+		}
+
+		public void run() {
+			System.out.println("SimulatorServer: client " + id + " connected from " + socket.getRemoteSocketAddress());
+			try {
+				socket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				boolean writeFailed = false;
+
+				while (true) {
+					int op;
+					try {
+						op = in.readUnsignedByte();
+					} catch (EOFException e) {
+						break;
+					}
+					int register = in.readUnsignedByte();
+					int len = in.readUnsignedByte();
+
+					if (op == OP_WRITE) {
+						in.readFully(buf, 0, len);
+						if (sim.sendData(register, buf, len) != 0) {
+							writeFailed = true;
+						}
+						writes++;
+					} else if (op == OP_READ) {
+						byte status = STATUS_OK;
+						if (len > 0 && sim.getData(register, buf, len) != 0) {
+							status = STATUS_READ_FAILED;
+						}
+						if (writeFailed) {
+							status |= STATUS_WRITE_FAILED;
+							writeFailed = false;
+						}
+						out.writeByte(status);
+						out.write(buf, 0, len);
+						// the client waits for this response before sending anything else
+						out.flush();
+						reads++;
+					} else {
+						System.out.println("SimulatorServer: client " + id + " sent unknown request " + op);
+						break;
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("SimulatorServer: client " + id + ": " + e.getMessage());
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+			System.out.println("SimulatorServer: client " + id + " disconnected after " + writes + " writes and "
+					+ reads + " reads (" + sim.getLostBytes() + " bytes lost)");
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		SimulatorServer server = new SimulatorServer(port);
+		if (args.length > 1) {
+			server.setScene(Long.parseLong(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : server.objects);
+		}
+		System.out.println("SimulatorServer: listening on port " + server.getPort());
+		server.run();
+	}
+}
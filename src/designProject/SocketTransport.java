@@ -0,0 +1,133 @@
+package designProject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/*
+ * Register bus of a simulated sensor running in a SimulatorServer process.
+ *
+ * Writes are buffered and only sent when a read needs the server's response (or the buffer is full),
+ * so a burst of register writes and the read that follows travel in one batch.
+ * A failed write is therefore reported by the next read.
+ */
+public class SocketTransport implements RegisterBus {
+
+	private final int BUFFER_SIZE = 512;
+
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+	private String errorMessage;
+
+	private int roundTrips;
+
+	public SocketTransport(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+		errorMessage = "";
+	}
+
+	private void createErrorMessage(String msg) {
+		errorMessage = "SocketTransport: " + msg;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/*
+	 * Number of reads, i.e. of waits for the server
+	 */
+	public int getRoundTrips() {
+		return roundTrips;
+	}
+
+	public int sendData(int register, byte value) {
+		try {
+			out.writeByte(SimulatorServer.OP_WRITE);
+			out.writeByte(register);
+			out.writeByte(1);
+			out.writeByte(value);
+		} catch (IOException e) {
+			createErrorMessage("Unable to write register " + register + ": " + e.getMessage());
+			return -1;
+		}
+		return 0;
+	}
+
+	public int sendData(int register, byte[] buf, int length) {
+		try {
+			for (int pos=0; pos<length; pos+=SimulatorServer.MAX_LEN) {
+				int n = length - pos;
+				if (n > SimulatorServer.MAX_LEN) {
+					n = SimulatorServer.MAX_LEN;
+				}
+				out.writeByte(SimulatorServer.OP_WRITE);
+				out.writeByte(register);
+				out.writeByte(n);
+				out.write(buf, pos, n);
+			}
+		} catch (IOException e) {
+			createErrorMessage("Unable to write register " + register + ": " + e.getMessage());
+			return -1;
+		}
+		return 0;
+	}
+
+	public int getData(int register, byte[] buf, int length) {
+		if (length > SimulatorServer.MAX_LEN) {
+			createErrorMessage("Unable to read " + length + " bytes in one request");
+			return -1;
+		}
+		int status;
+		try {
+			out.writeByte(SimulatorServer.OP_READ);
+			out.writeByte(register);
+			out.writeByte(length);
+			out.flush();
+			status = in.readUnsignedByte();
+			in.readFully(buf, 0, length);
+			roundTrips++;
+		} catch (IOException e) {
+			createErrorMessage("Unable to read register " + register + ": " + e.getMessage());
+			return -1;
+		}
+		if ((status & SimulatorServer.STATUS_WRITE_FAILED) != 0) {
+			createErrorMessage("A register write before reading register " + register + " failed");
+			return -1;
+		}
+		if ((status & SimulatorServer.STATUS_READ_FAILED) != 0) {
+			createErrorMessage("Unable to read register " + register);
+			return -1;
+		}
+		return 0;
+	}
+
+	/*
+	 * Send any buffered writes without waiting for a read
+	 */
+	public int flush() {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			createErrorMessage("Unable to send the buffered writes: " + e.getMessage());
+			return -1;
+		}
+		return 0;
+	}
+
+	public void close() {
+		flush();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+}
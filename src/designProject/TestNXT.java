@@ -91,18 +91,154 @@ public class TestNXT {
 			g.drawRect((int)(Math.round(x_int*dist[0][i])), (lcdHeight-lcdStartY)-distance, x_width, distance);
 		}
 	}
+	/*
+	 * Acquire and draw a scan every period ms until ESCAPE is pressed.
+	 * The buttons are polled between cycles so they never block the acquisition. 
+	 * LEFT/RIGHT change the number of distances on the fly, unless a latency budget was set on the
+	 * sensor, in which case its FrameSizeController picks the number of distances and the
+	 * period becomes its poll period.
+	 * The top line shows the distances per scan, the number of missed deadlines and the
+	 * average/maximum jitter (ms) of the cycle start times.
+	 */
+	public static void runLive(theNextSensor sensor, int[][] dist, int distToRead, int period, DistanceStreamer streamer) {
+		int lastButtons = 0;
+		int cycles = 0;
+		int missed = 0;
+		int errors = 0;
+		long jitterSum = 0;
+		int maxJitter = 0;
+
+		LCD.clear();
+		long next = System.currentTimeMillis();
+		while (true) {
+			long start = System.currentTimeMillis();
+			int jitter = (int)(start - next);
+			jitterSum += jitter;
+			if (jitter > maxJitter) {
+				maxJitter = jitter;
+			}
+			cycles++;
+
+			// Only act on buttons that were pressed since the last cycle
+			int buttons = Button.readButtons();
+			int pressed = buttons & ~lastButtons;
+			lastButtons = buttons;
+			if ((pressed & Button.ID_ESCAPE) != 0) {
+				break;
+			} else if ((pressed & Button.ID_LEFT) != 0) {
+				distToRead -= 2;
+				if (distToRead < 1) {
+					distToRead = 1;
+				}
+			} else if ((pressed & Button.ID_RIGHT) != 0) {
+				distToRead += 2;
+				if (distToRead > theNextSensor.MAX_DISTANCES) {
+					distToRead = theNextSensor.MAX_DISTANCES;
+				}
+			}
+
+			LCD.clear();
+			int ret;
+			if (sensor.getFrameSizeController() != null) {
+				ret = sensor.getDistanceAdaptive(dist);
+				if (ret > 0) {
+					distToRead = ret;
+					ret = 0;
+				}
+			} else {
+				ret = sensor.getDistance(dist, distToRead);
+			}
+			if (ret != 0) {
+				errors++;
+			} else {
+				if (streamer != null) {
+					streamer.offer(dist, distToRead);
+				}
+				drawGraph(dist, distToRead);
+			}
+			LCD.drawString("N" + distToRead + " M" + missed + " J" + (jitterSum/cycles) + "/" + maxJitter
+					+ (errors > 0 ? " E" + errors : ""), 0, 0);
+
+			if (sensor.getFrameSizeController() != null) {
+				// the budget, or longer while even the smallest frame doesn't fit in it
+				next += sensor.getFrameSizeController().getPollPeriod();
+			} else {
+				next += period;
+			}
+			long now = System.currentTimeMillis();
+			if (now > next) {
+				// Deadline missed. Start the next cycle straight away instead of trying to catch up.
+				missed++;
+				next = now;
+			} else {
+				Delay.msDelay(next - now);
+			}
+		}
+	}
+
 	public static void main(String[] args) {
 
 		int[][] dist = new int[2][theNextSensor.MAX_DISTANCES];
 
 	
+	// Hold buttons while starting up to select the features, so they can be used without recompiling:
+	// RIGHT live mode, LEFT adaptive live mode, ENTER stream to a host, ESCAPE calibrate the link
+	System.out.println("Hold to select:");
+	System.out.println("RIGHT live");
+	System.out.println("LEFT adaptive");
+	System.out.println("ENTER host");
+	System.out.println("ESCAPE calibrate");
     Delay.msDelay(2000);
+	int startButtons = Button.readButtons();
+	LCD.clear();
     int distToRead = 2;
 	theNextSensor mySensor = new theNextSensor(SensorPort.S1, false);
+
+	// Measure the link at startup to spot a slow or noisy connection
+	boolean calibrateLink = (startButtons & Button.ID_ESCAPE) != 0;
+	if (calibrateLink) {
+		LinkCalibration cal = new LinkCalibration();
+		if (mySensor.calibrateLink(256, cal) == 0) {
+			System.out.println("RTT " + cal.getRoundTripAverage() + "ms");
+			System.out.println(cal.getBytesPerSecond() + "/" + cal.getExpectedBytesPerSecond() + " B/s");
+			System.out.println("Errors: " + cal.getErrors());
+		} else {
+			System.out.println(mySensor.getErrorTrace());
+		}
+		Button.waitForAnyPress();
+	}
+
+	// Stream every scan to a host over Bluetooth for logging
+	boolean streamToHost = (startButtons & Button.ID_ENTER) != 0;
+	NXTConnection conn = null;
+	DistanceStreamer streamer = null;
+	if (streamToHost) {
+		System.out.println("Waiting for host...");
+		conn = Bluetooth.waitForConnection(30000, NXTConnection.PACKET);
+		if (conn == null) {
+			System.out.println("No host connected");
+		} else {
+			streamer = new DistanceStreamer(conn.openOutputStream(), 16, 4);
+			streamer.start();
+		}
+	}
+
+	// Let the sensor pick the number of distances that can be read within the budget
+	boolean adaptive = (startButtons & Button.ID_LEFT) != 0;
+	// Acquire and draw scans at a fixed rate instead of waiting for ENTER
+	boolean liveMode = adaptive || (startButtons & Button.ID_RIGHT) != 0;
+	int livePeriod = 100; // ms
+	int liveBudget = 60; // ms
+	if (liveMode) {
+		if (adaptive) {
+			mySensor.setLatencyBudget(liveBudget);
+		}
+		runLive(mySensor, dist, distToRead, livePeriod, streamer);
+	}
 	
 	LCD.clear();
 	System.out.println("Distances to Get: " + distToRead);
-    while(true) {
+    while(!liveMode) {
         int myButton = Button.waitForAnyPress();
         
     	if (myButton == Button.ENTER.getId()) {
@@ -111,6 +247,9 @@ public class TestNXT {
     			System.out.println(mySensor.getErrorTrace());
     			continue;
     		}	
+    		if (streamer != null) {
+    			streamer.offer(dist, distToRead);
+    		}
     		LCD.clear();
     		drawGraph(dist, distToRead);	
     	} else if (myButton == Button.ESCAPE.getId()) {
@@ -139,6 +278,11 @@ public class TestNXT {
     	Delay.msDelay(30);
     }
 
+    if (streamer != null) {
+    	streamer.stop();
+    	conn.close();
+    }
+
 	/*theNextSensor myUart = new theNextSensor(SensorPort.S1, false);
 	
 	
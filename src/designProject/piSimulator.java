@@ -4,7 +4,7 @@ package designProject;
  * This class simulations what the Rasberry PI distance sensor does when it receives commands from NXT
  * over its UART interface through SC16IS750 I2C-UART chip.
  */
-public class piSimulator {
+public class piSimulator implements RegisterBus {
 
 	// SC16IS750 Register definitions. Values are shifted according to Table 33 in the datasheet
 	final int THR        = 0x00 << 3;
@@ -34,15 +34,58 @@ public class piSimulator {
 	final int XOFF1      = 0x06 << 3;
 	final int XOFF2      = 0x07 << 3;
 
-	final boolean verbose = true;
+	final int TCR        = 0x06 << 3;
+	final int TLR        = 0x07 << 3;
+
+	final int LCR_ENHANCED_BANK = 0xBF;
+	final int LCR_DIVISOR_LATCH = 0x80;
+	final int EFR_AUTO_RTS = 1 << 6;
+	final int EFR_TX_FLOW_MASK = 0x3 << 2;
+	final int MCR_TCR_TLR_ENABLE = 1 << 2;
+	final int MCR_LOOPBACK = 1 << 4;
+	final int FCR_RESET_RX = 1 << 1;
+	final int LSR_DATA_READY = 1 << 0;
+	final int LSR_OVERRUN = 1 << 1;
+	final int LSR_THR_EMPTY = 0x3 << 5;
+
+	private boolean verbose = true;
 
 	private Mode currentMode;
 
-	private final byte MAX_DISTANCES = 8;
+	private final byte MAX_DISTANCES = 32;
+
+	// Size of the SC16IS750 RX FIFO
+	private final int FIFO_SIZE = 64;
+	// Size of the transmit buffer of the Pi serial port
+	private final int PI_TX_SIZE = 256;
+	private final int XPIXELS = 1944;
 
 	private final byte CMD_GET_MODE = 1;
 	private final byte CMD_SET_MODE = 2;
+	private final byte CMD_GET_NEAREST = 3;
 	private final byte CMD_GET_DIST = 4;
+	private final byte CMD_GET_ROI = 5;
+	private final byte CMD_CONFIG = 6;
+	private final byte CMD_GET_CHANGES = 7;
+
+	private final byte CFG_STREAM = 0;
+	private final byte CFG_CHANGES = 1;
+	private final byte CFG_BIN_THRESHOLD = 2;
+	private final byte CFG_TIMESTAMPS = 3;
+	private final byte CFG_GET_TIME = 4;
+	private final byte CFG_ECHO = 5;
+
+	// The Pi clock is unrelated to the NXT clock
+	private final long PI_CLOCK_OFFSET = 86400000L;
+
+	private final int NO_FRAME_ACK = 0xFF;
+	private final int CHANGES_KEYFRAME = 0x80;
+	private final byte CFG_MASK = 0x1F; // 5 bits
+	private final int MAX_PARAMS = 4;
+	// A command is dropped if its parameter bytes stop coming for longer than this (ms)
+	private final int PARAM_TIMEOUT = 20;
+
+	private final byte STREAM_SYNC = (byte)0xA5;
 
 	// Value to represent how many bits are used for the command
 	private final byte CMD_MASK = 0x7; // 3 bits
@@ -50,30 +93,100 @@ public class piSimulator {
 	// Position of the command bits
 	private final byte CMD_SHIFT = 5;
 
-	private final byte MODE_MASK = 0x3; // 2 bits
-	private final byte DIST_LEN_MASK = 0x7; // 3 bits
+	private final byte MODE_MASK = 0x7; // 3 bits
+	private final byte DIST_LEN_MASK = 0x1F; // 5 bits
+
+	// RX FIFO of the UART chip, i.e. bytes sent by the Pi and not yet read by the NXT
+	private byte[] rxFifo;
+	private int rxHead;
+	private int rxCount;
 
-	private byte[] bytesToSend; // array of bytes to send
-	private int sendLen; // number of bytes to send when getData function is called
+	// Bytes the Pi has queued for sending but that haven't reached the RX FIFO yet
+	private byte[] piTx;
+	private int piTxHead;
+	private int piTxCount;
+
+	// UART chip registers that affect the simulation
+	private int lcr;
+	private int mcr;
+	private int efr;
+	private int tcr;
+	private boolean overrun; // set when a byte was lost, cleared when LSR is read
+	private byte spr; // scratch pad register, used by I2cUart.testConn
+	private boolean txHalted; // Pi halted through RTS/CTS or XOFF
+	private int lostBytes;
 
 	private int[] distances;
+	private int[] xPositions;
+	private SceneGenerator scene;
+	private boolean timestamps;
+	private int echo; // echo reported for every bin, 0 is the nearest
+	private long captureTime; // Pi clock when the distances were captured
+
+	// Command waiting for its parameter bytes, and its own data bits
+	private byte pendingCommand;
+	private int pendingData;
+	private byte[] params;
+	private int paramCount;
+	private int paramsExpected;
+	private long lastParamTime; // when the last command or parameter byte was received
+
+	// Stream mode settings
+	private int streamNum;
+	private int streamPeriod;
+	private long nextStreamTime;
+	private int droppedStreamFrames;
+
+	// Change-only reporting state. baseline is the frame the NXT has acknowledged,
+	// reported is the frame the NXT will have once it applies the last response.
+	private int[] binThreshold;
+	private int keyframeInterval;
+	private int[] baseline;
+	private int[] reported;
+	private int changesNum;
+	private boolean baselineValid;
+	private int reportedSeq;
+	private int framesSinceKeyframe;
 	
 	public static enum Mode{
 		MODE_OFF,
 		MODE_RESET,
 		MODE_PING,
 		MODE_CONTINUOUS,
+		MODE_STREAM,
 	}
 
 	public piSimulator() {
-		// Each distance is represented by two bytes
-		bytesToSend = new byte[MAX_DISTANCES*2];
-		sendLen = 0;
-
-		// Initialize bytes to send
-		for (int i=0; i<bytesToSend.length; i++) {
-			bytesToSend[i] = 0;
-		}
+		rxFifo = new byte[FIFO_SIZE];
+		rxHead = 0;
+		rxCount = 0;
+		piTx = new byte[PI_TX_SIZE];
+		piTxHead = 0;
+		piTxCount = 0;
+		lcr = 0;
+		mcr = 0;
+		efr = 0;
+		tcr = 0;
+		overrun = false;
+		txHalted = false;
+		lostBytes = 0;
+		params = new byte[MAX_PARAMS];
+		paramCount = 0;
+		paramsExpected = 0;
+		streamNum = MAX_DISTANCES;
+		streamPeriod = 50;
+		droppedStreamFrames = 0;
+		timestamps = false;
+		echo = 0;
+		captureTime = piClock();
+		binThreshold = new int[MAX_DISTANCES];
+		keyframeInterval = 20;
+		baseline = new int[MAX_DISTANCES];
+		reported = new int[MAX_DISTANCES];
+		changesNum = 0;
+		baselineValid = false;
+		reportedSeq = NO_FRAME_ACK;
+		framesSinceKeyframe = 0;
 		
 		// Set the default mode
 		currentMode = Mode.MODE_CONTINUOUS;
@@ -84,6 +197,167 @@ public class piSimulator {
 			distances[i] = 500+i;
 		}
 		distances[4] = -1; // set it to denote that no object was found
+		xPositions = new int[MAX_DISTANCES];
+	}
+
+	/*
+	 * Create a simulator that takes its distances from the given scene instead of the fixed values
+	 */
+	public piSimulator(SceneGenerator scene) {
+		this();
+		this.scene = scene;
+	}
+
+	public void setScene(SceneGenerator scene) {
+		this.scene = scene;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/*
+	 * Number of stream frames the Pi replaced with a newer one before sending them
+	 */
+	public int getDroppedStreamFrames() {
+		return droppedStreamFrames;
+	}
+
+	/*
+	 * Number of bytes lost because the RX FIFO overflowed
+	 */
+	public int getLostBytes() {
+		return lostBytes;
+	}
+
+	/*
+	 * Queue a byte for sending by the Pi. Return -1 if the Pi transmit buffer is full.
+	 */
+	private int queueByte(byte b) {
+		if (piTxCount >= PI_TX_SIZE) {
+			if (verbose) {
+				System.out.println("piSimulator: Pi transmit buffer full");
+			}
+			return -1;
+		}
+		piTx[(piTxHead + piTxCount) % PI_TX_SIZE] = b;
+		piTxCount++;
+		return 0;
+	}
+
+	/*
+	 * Move the bytes queued by the Pi into the RX FIFO of the chip.
+	 * Without flow control the Pi sends everything and bytes that don't fit are lost (overrun).
+	 * With RTS/CTS or XON/XOFF the Pi is halted at the TCR halt level and resumed at the resume level.
+	 */
+	private void transmit() {
+		boolean flowControl = ((efr & EFR_AUTO_RTS) != 0) || ((efr & EFR_TX_FLOW_MASK) != 0);
+		int haltLevel = (tcr & 0x0F) * 4;
+		int resumeLevel = ((tcr >> 4) & 0x0F) * 4;
+		if (haltLevel == 0) {
+			haltLevel = FIFO_SIZE;
+		}
+
+		while (piTxCount > 0) {
+			if ((mcr & MCR_LOOPBACK) != 0) {
+				// In loopback the RX input is disconnected from the Pi, so what it sends is lost
+				piTxHead = (piTxHead + 1) % PI_TX_SIZE;
+				piTxCount--;
+				lostBytes++;
+				continue;
+			}
+			if (flowControl) {
+				if (rxCount >= haltLevel) {
+					txHalted = true;
+				} else if (txHalted && rxCount <= resumeLevel) {
+					txHalted = false;
+				}
+				if (txHalted) {
+					return;
+				}
+			}
+			byte b = piTx[piTxHead];
+			piTxHead = (piTxHead + 1) % PI_TX_SIZE;
+			piTxCount--;
+			receive(b);
+		}
+	}
+
+	/*
+	 * Put a byte arriving on the RX input in the RX FIFO
+	 */
+	private void receive(byte b) {
+		if (rxCount >= FIFO_SIZE) {
+			// overrun: the byte is lost
+			if (verbose && !overrun) {
+				System.out.println("piSimulator: RX FIFO overrun");
+			}
+			overrun = true;
+			lostBytes++;
+			return;
+		}
+		rxFifo[(rxHead + rxCount) % FIFO_SIZE] = b;
+		rxCount++;
+	}
+
+	private long piClock() {
+		return System.currentTimeMillis() + PI_CLOCK_OFFSET;
+	}
+
+	/*
+	 * Queue a time value as 4 bytes (little-endian). Return the XOR of the bytes.
+	 */
+	private byte queueTime(long time) {
+		byte checksum = 0;
+		for (int i=0; i<4; i++) {
+			byte b = (byte)((time >> (i*8)) & 0xff);
+			queueByte(b);
+			checksum ^= b;
+		}
+		return checksum;
+	}
+
+	/*
+	 * Queue the capture time of the distances if timestamps are enabled. Return the XOR of the bytes.
+	 */
+	private byte queueCaptureTime() {
+		if (!timestamps) {
+			return 0;
+		}
+		return queueTime(captureTime);
+	}
+
+	/*
+	 * Fill the distance array for num distances spread over the image width
+	 */
+	private void updateDistances(int num) {
+		updateDistances(num, 0, XPIXELS-1);
+	}
+
+	/*
+	 * Fill the distance array for num distances spread over the columns x0 to x1
+	 */
+	private void updateDistances(int num, int x0, int x1) {
+		if (scene == null) {
+			// keep the fixed values, as if they were just measured
+			captureTime = piClock();
+			return;
+		}
+		// must match theNextSensor.binToX
+		int interval = (x1 - x0 + 1)/(num+1);
+		for (int i=0; i<num; i++) {
+			xPositions[i] = x0 + (i+1)*interval;
+		}
+		if (!scene.isClockDriven()) {
+			// stepped scene: the current tick is measured now
+			scene.getDistances(xPositions, distances, num, echo);
+			captureTime = piClock();
+			return;
+		}
+		scene.update(System.currentTimeMillis());
+		scene.getDistances(xPositions, distances, num, echo);
+		// the distances are as old as the current scene update
+		captureTime = scene.getTickTime() + PI_CLOCK_OFFSET;
 	}
 	/*
 	 * Convert mode from enum to byte value
@@ -98,6 +372,8 @@ public class piSimulator {
 			return 2;
 		case MODE_CONTINUOUS:
 			return 3;
+		case MODE_STREAM:
+			return 4;
 		default:
 			return 0;				
 		}
@@ -113,21 +389,91 @@ public class piSimulator {
 			return Mode.MODE_PING;
 		case 3:
 			return Mode.MODE_CONTINUOUS;
+		case 4:
+			return Mode.MODE_STREAM;
 		default:
 			return Mode.MODE_OFF;				
 		}
 	}
 
+	/*
+	 * Write several bytes to the same register in one I2C transaction, e.g. to fill the TX FIFO
+	 */
+	public int sendData(int register, byte[] buf, int length) {
+		for (int i=0; i<length; i++) {
+			if (sendData(register, buf[i]) != 0) {
+				return -1;
+			}
+		}
+		return 0;
+	}
+
 	public int sendData(int register, byte value) {
+		if (register == LCR) {
+			lcr = value & 0xff;
+			return 0;
+		}
+		if (lcr == LCR_ENHANCED_BANK) {
+			// EFR, XON and XOFF registers. Only EFR matters for the simulation.
+			if (register == EFR) {
+				efr = value & 0xff;
+			}
+			return 0;
+		}
+		if ((lcr & LCR_DIVISOR_LATCH) != 0 && (register == DLL || register == DLM)) {
+			// baud rate divisor isn't simulated
+			return 0;
+		}
+		if ((mcr & MCR_TCR_TLR_ENABLE) != 0 && (register == TCR || register == TLR)) {
+			if (register == TCR) {
+				tcr = value & 0xff;
+			}
+			return 0;
+		}
+
 		switch (register) {	
+		case MCR:
+			mcr = value & 0xff;
+			break;
+		case SPR:
+			spr = value;
+			break;
+		case FCR:
+			if ((value & FCR_RESET_RX) != 0) {
+				rxHead = 0;
+				rxCount = 0;
+			}
+			break;
 		case THR:
+			if ((mcr & MCR_LOOPBACK) != 0) {
+				// the byte comes straight back into the RX FIFO instead of going to the Pi
+				receive(value);
+				break;
+			}
+			if (paramsExpected > 0 && System.currentTimeMillis() - lastParamTime > PARAM_TIMEOUT) {
+				// the rest of the command never came. Drop it and take this byte as a new command.
+				if (verbose) {
+					System.out.println("piSimulator: Dropped command " + pendingCommand + " after " + paramCount 
+							+ " of " + paramsExpected + " parameter bytes");
+				}
+				paramsExpected = 0;
+			}
+			lastParamTime = System.currentTimeMillis();
+			if (paramsExpected > 0) {
+				// parameter byte of a configuration command
+				params[paramCount++] = value;
+				if (paramCount == paramsExpected) {
+					paramsExpected = 0;
+					completeCommand();
+				}
+				break;
+			}
 			// user is sending a command to the sensor
 			int command =  (value >> CMD_SHIFT) & CMD_MASK;
 			switch ((byte)command) {
 			case CMD_GET_MODE:
 				// send the mode when next RHR read command is sent
-				bytesToSend[0] = modeToByte(currentMode);
-				sendLen = 1;
+				queueByte(modeToByte(currentMode));
 				if (verbose) {
 					System.out.println("piSimulator: Received command CMD_GET_MODE. Current mode: " + modeToByte(currentMode));
 				}
@@ -139,12 +485,48 @@ public class piSimulator {
 					System.out.println("piSimulator: Received command CMD_SET_MODE. Old mode: " 
 							+ currentMode + ". New mode: " + byteToMode((byte)data));
 				}								
+				if (currentMode == Mode.MODE_STREAM && byteToMode((byte)data) != Mode.MODE_STREAM) {
+					// Stop streaming. Frames not started yet are dropped but the frame
+					// already on the wire is finished. Only stream frames are queued while streaming.
+					int frameLen = streamNum*2 + 3 + (timestamps ? 4 : 0);
+					piTxCount %= frameLen;
+				}
 				currentMode = byteToMode((byte)data);
 				if (currentMode == Mode.MODE_RESET) {
 					// Reset the device and then change the mode to continuous
 					currentMode = Mode.MODE_CONTINUOUS;
 				}
-				sendLen = 0;
+				if (currentMode == Mode.MODE_STREAM) {
+					// the first frame goes out straight away
+					nextStreamTime = System.currentTimeMillis();
+				}
+				break;
+			case CMD_GET_NEAREST:
+				sendNearest((value & DIST_LEN_MASK) + 1);
+				break;
+			case CMD_GET_ROI:
+				// wait for the column window
+				pendingCommand = CMD_GET_ROI;
+				pendingData = (value & DIST_LEN_MASK) + 1;
+				paramCount = 0;
+				paramsExpected = 4;
+				break;
+			case CMD_GET_CHANGES:
+				// wait for the sequence number of the last frame the NXT applied
+				pendingCommand = CMD_GET_CHANGES;
+				pendingData = (value & DIST_LEN_MASK) + 1;
+				paramCount = 0;
+				paramsExpected = 1;
+				break;
+			case CMD_CONFIG:
+				// wait for the parameter bytes of the setting
+				pendingCommand = CMD_CONFIG;
+				pendingData = value & CFG_MASK;
+				paramCount = 0;
+				paramsExpected = paramLength(pendingData);
+				if (paramsExpected == 0) {
+					completeCommand();
+				}
 				break;
 			case CMD_GET_DIST:
 				// send the distance value (s) when next RHR read command is sent
@@ -157,21 +539,23 @@ public class piSimulator {
 					if (verbose) {
 						System.out.println("piSimulator: Distance requested but the sensor is off"); 
 					}					
-					sendLen = 0;
 					break;
 				}
 				if (num <= MAX_DISTANCES) {
+					updateDistances(num);
 					for (int i=0; i<num; i++) {
 						// Convert integer distance into two bytes to send over I2C (little-endian)
-						bytesToSend[i*2] = (byte)(distances[i] & 0xff);								
-						bytesToSend[(i*2)+1] = (byte)((distances[i] >> 8) & 0xff);
+						queueByte((byte)(distances[i] & 0xff));
+						queueByte((byte)((distances[i] >> 8) & 0xff));
 					}
-					sendLen = num*2;
+					queueCaptureTime();
 				} else {
 					System.out.println("piSimulator: Number of distances requested is more than maximum"); 					
 				}
 				break;
 			}
+			transmit();
+			break;
 		default:
 			break;
 		}
@@ -179,40 +563,320 @@ public class piSimulator {
 		return 0;
 	}
 
+	/*
+	 * Execute a command once all its parameter bytes have been received
+	 */
+	private void completeCommand() {
+		switch (pendingCommand) {
+		case CMD_GET_ROI:
+			sendWindow(pendingData);
+			break;
+		case CMD_GET_CHANGES:
+			sendChanges(pendingData, params[0] & 0xff);
+			break;
+		case CMD_CONFIG:
+			configure(pendingData);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/*
+	 * Send only the nearest of num distances: [bin] [distance (2 bytes)], bin is 0xFF if nothing was found
+	 */
+	private void sendNearest(int num) {
+		if (verbose) {
+			System.out.println("piSimulator: Received command CMD_GET_NEAREST of length " + num);
+		}
+		if ((currentMode != Mode.MODE_CONTINUOUS) && (currentMode != Mode.MODE_PING)) {
+			// Don't send any data because the sensor is off
+			if (verbose) {
+				System.out.println("piSimulator: Distance requested but the sensor is off");
+			}
+			return;
+		}
+		updateDistances(num);
+		int bin = 0xFF;
+		int nearest = -1;
+		for (int i=0; i<num; i++) {
+			if (distances[i] >= 0 && (nearest < 0 || distances[i] < nearest)) {
+				nearest = distances[i];
+				bin = i;
+			}
+		}
+		queueByte((byte)bin);
+		queueByte((byte)(nearest & 0xff));
+		queueByte((byte)((nearest >> 8) & 0xff));
+		queueCaptureTime();
+	}
+
+	/*
+	 * Send num distances spread over the column window received as parameters
+	 */
+	private void sendWindow(int num) {
+		int x0 = (params[0] & 0xff) | ((params[1] & 0xff) << 8);
+		int x1 = (params[2] & 0xff) | ((params[3] & 0xff) << 8);
+		if (verbose) {
+			System.out.println("piSimulator: Received command CMD_GET_ROI of length " + num + " for columns " + x0 + "-" + x1);
+		}
+		if ((currentMode != Mode.MODE_CONTINUOUS) && (currentMode != Mode.MODE_PING)) {
+			// Don't send any data because the sensor is off
+			if (verbose) {
+				System.out.println("piSimulator: Distance requested but the sensor is off");
+			}
+			return;
+		}
+		if (x0 > x1 || x1 >= XPIXELS || (x1 - x0 + 1) < num + 1) {
+			System.out.println("piSimulator: Invalid column window");
+			return;
+		}
+		updateDistances(num, x0, x1);
+		for (int i=0; i<num; i++) {
+			// Convert integer distance into two bytes to send over I2C (little-endian)
+			queueByte((byte)(distances[i] & 0xff));
+			queueByte((byte)((distances[i] >> 8) & 0xff));
+		}
+		queueCaptureTime();
+	}
+
+	/*
+	 * Send only the bins that moved by more than their threshold since the frame the NXT
+	 * acknowledged, or the full frame (keyframe) when the NXT has nothing to build on.
+	 * Response: [seq] [flags | count] then either num distances (keyframe) or count x [bin] [distance]
+	 */
+	private void sendChanges(int num, int ack) {
+		if (verbose) {
+			System.out.println("piSimulator: Received command CMD_GET_CHANGES of length " + num + " ack " + ack);
+		}
+		if ((currentMode != Mode.MODE_CONTINUOUS) && (currentMode != Mode.MODE_PING)) {
+			// Don't send any data because the sensor is off
+			if (verbose) {
+				System.out.println("piSimulator: Distance requested but the sensor is off");
+			}
+			return;
+		}
+
+		if (ack != NO_FRAME_ACK && ack == reportedSeq) {
+			// the NXT has applied the last response
+			for (int i=0; i<changesNum; i++) {
+				baseline[i] = reported[i];
+			}
+			baselineValid = true;
+		} else if (ack == NO_FRAME_ACK) {
+			baselineValid = false;
+		}
+
+		updateDistances(num);
+		boolean keyframe = !baselineValid || (num != changesNum)
+				|| (keyframeInterval > 0 && framesSinceKeyframe >= keyframeInterval);
+
+		int count = 0;
+		for (int i=0; i<num; i++) {
+			if (keyframe) {
+				reported[i] = distances[i];
+				continue;
+			}
+			int diff = distances[i] - baseline[i];
+			if (diff < 0) {
+				diff = -diff;
+			}
+			// appearing or disappearing echoes (-1) are always reported
+			boolean lost = (distances[i] == -1) != (baseline[i] == -1);
+			if (lost || diff > binThreshold[i]) {
+				reported[i] = distances[i];
+				count++;
+			} else {
+				reported[i] = baseline[i];
+			}
+		}
+		if (!keyframe && count*3 > num*2) {
+			// the changes would take more bytes than the full frame
+			keyframe = true;
+			for (int i=0; i<num; i++) {
+				reported[i] = distances[i];
+			}
+		}
+		changesNum = num;
+		framesSinceKeyframe = keyframe ? 0 : framesSinceKeyframe + 1;
+		reportedSeq = (reportedSeq + 1) % NO_FRAME_ACK;
+
+		queueByte((byte)reportedSeq);
+		queueByte((byte)(keyframe ? CHANGES_KEYFRAME : count));
+		for (int i=0; i<num; i++) {
+			if (keyframe) {
+				queueByte((byte)(distances[i] & 0xff));
+				queueByte((byte)((distances[i] >> 8) & 0xff));
+			} else if (reported[i] != baseline[i]) {
+				queueByte((byte)i);
+				queueByte((byte)(distances[i] & 0xff));
+				queueByte((byte)((distances[i] >> 8) & 0xff));
+			}
+		}
+	}
+
+	/*
+	 * Number of parameter bytes following a configuration command
+	 */
+	private int paramLength(int setting) {
+		switch (setting) {
+		case CFG_STREAM:
+			return 3;
+		case CFG_CHANGES:
+			return 3;
+		case CFG_BIN_THRESHOLD:
+			return 3;
+		case CFG_TIMESTAMPS:
+			return 1;
+		case CFG_ECHO:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	private void configure(int setting) {
+		switch (setting) {
+		case CFG_STREAM:
+			int num = params[0] & 0xff;
+			int period = (params[1] & 0xff) | ((params[2] & 0xff) << 8);
+			if (verbose) {
+				System.out.println("piSimulator: Received stream configuration. Distances: " + num + " Period: " + period);
+			}
+			if (num < 1 || num > MAX_DISTANCES || period < 1) {
+				System.out.println("piSimulator: Invalid stream configuration");
+				break;
+			}
+			streamNum = num;
+			streamPeriod = period;
+			break;
+		case CFG_CHANGES:
+			int threshold = (params[0] & 0xff) | ((params[1] & 0xff) << 8);
+			if (verbose) {
+				System.out.println("piSimulator: Received change threshold " + threshold + " keyframe interval " + (params[2] & 0xff));
+			}
+			for (int i=0; i<binThreshold.length; i++) {
+				binThreshold[i] = threshold;
+			}
+			keyframeInterval = params[2] & 0xff;
+			break;
+		case CFG_BIN_THRESHOLD:
+			int bin = params[0] & 0xff;
+			if (bin >= MAX_DISTANCES) {
+				System.out.println("piSimulator: Invalid bin " + bin);
+				break;
+			}
+			binThreshold[bin] = (params[1] & 0xff) | ((params[2] & 0xff) << 8);
+			break;
+		case CFG_TIMESTAMPS:
+			timestamps = params[0] != 0;
+			if (verbose) {
+				System.out.println("piSimulator: Timestamps " + (timestamps ? "enabled" : "disabled"));
+			}
+			break;
+		case CFG_GET_TIME:
+			queueTime(piClock());
+			break;
+		case CFG_ECHO:
+			if ((params[0] & 0xff) >= SceneGenerator.MAX_ECHOES) {
+				System.out.println("piSimulator: Invalid echo " + (params[0] & 0xff));
+				break;
+			}
+			echo = params[0] & 0xff;
+			if (verbose) {
+				System.out.println("piSimulator: Reporting echo " + echo);
+			}
+			break;
+		default:
+			if (verbose) {
+				System.out.println("piSimulator: Unknown configuration setting " + setting);
+			}
+			break;
+		}
+	}
+
+	/*
+	 * In stream mode, queue the frames that are due since the last call.
+	 * Like the real sensor, the Pi doesn't catch up on missed periods, and a new frame replaces
+	 * an earlier frame that is still waiting to be sent, so the backlog never holds outdated frames.
+	 */
+	private void generateStream() {
+		if (currentMode != Mode.MODE_STREAM) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now < nextStreamTime) {
+			return;
+		}
+		nextStreamTime += streamPeriod;
+		if (nextStreamTime <= now) {
+			// fell behind by more than one period
+			nextStreamTime = now + streamPeriod;
+		}
+
+		int frameLen = streamNum*2 + 3 + (timestamps ? 4 : 0);
+		if (piTxCount >= frameLen) {
+			// Frames are queued back to back and only the first one may be partly sent,
+			// so the last frameLen bytes are a whole frame that hasn't started yet
+			piTxCount -= frameLen;
+			droppedStreamFrames++;
+		}
+		updateDistances(streamNum);
+		byte checksum = (byte)streamNum;
+		queueByte(STREAM_SYNC);
+		queueByte((byte)streamNum);
+		for (int i=0; i<streamNum; i++) {
+			byte low = (byte)(distances[i] & 0xff);
+			byte high = (byte)((distances[i] >> 8) & 0xff);
+			queueByte(low);
+			queueByte(high);
+			checksum ^= low ^ high;
+		}
+		checksum ^= queueCaptureTime();
+		queueByte(checksum);
+	}
+
 	public int getData(int register, byte[] buf, int length) {
+		generateStream();
+		transmit();
 		switch (register) {
+		case LSR:
+			buf[0] = (byte)(LSR_THR_EMPTY | (rxCount > 0 ? LSR_DATA_READY : 0) | (overrun ? LSR_OVERRUN : 0));
+			overrun = false;
+			break;
 		case RXLVL:
-			// user is trying to read available data length so return maximum
-			buf[0] = 100;
+			// user is trying to read available data length
+			buf[0] = (byte)rxCount;
+			break;
+		case MCR:
+			buf[0] = (byte)mcr;
+			break;
+		case SPR:
+			buf[0] = spr;
 			break;
 		case TXLVL:
 			// user is trying to check whether TX buffer is empty before sending real data so send "empty" status
 			buf[0] = 1;
 			break;			
 		case RHR:
-			if (buf.length < sendLen) {
-				System.out.println("Sent");
-				if (verbose) {
-					System.out.println("piSimulator: Could not send data because buffer length " 
-							+ buf.length + " is less than sendLen " + sendLen);
-				}																						
-				return -1;
-			}
-			if (sendLen == 0) {
+			if (rxCount < length) {
 				if (verbose) {
-					System.out.println("piSimulator: Received request to send data but nothing to send"); 
+					System.out.println("piSimulator: Could not send data because only " 
+							+ rxCount + " bytes are available out of " + length);
 				}																						
 				return -1;
 			}
 			// user is trying to get some data (mode or distance)
 			if (verbose) {
-				System.out.println("piSimulator: Sending data of byte length " + sendLen);
+				System.out.println("piSimulator: Sending data of byte length " + length);
 			}																		
-			for (int i=0; i<sendLen; i++) {
-				buf[i] = bytesToSend[i];
+			for (int i=0; i<length; i++) {
+				buf[i] = rxFifo[rxHead];
+				rxHead = (rxHead + 1) % FIFO_SIZE;
 			}
-			// Reset the send buffer length
-			sendLen = 0;
+			rxCount -= length;
+			// Reading may have drained the FIFO enough to resume the Pi
+			transmit();
 			break;
 		default:
 			buf[0] = 17;
@@ -7,14 +7,51 @@ import lejos.util.Delay;
  * ------------------------
  * The command itself is 3 bits long. Rest of the bits contain additional data. x means the bit state doesn't matter.
  * [b7] [b6] [b5] [b4] [b3] [b2] [b1] [b0]
- *  0    0    1    x    x    x    x    x   <- Get current mode in the hardware. Return 1 byte: 0 (off), 1 (reset), 2(ping), 3(continuous)
- *  0    1    0    0    0    0    m1   m0  <- Set current mode in the hardware. off (m2m1=00), 
- *                                            reset (m2m1=01), ping (m2m1=10), continuous (m2m1=11)
- *  1    d6   d5   d4   d3   d2   d1   d0  <- Get the distance value(s). [d6-d0] is the number of distance values to read (1-128) minus 1 
+ *  0    0    1    x    x    x    x    x   <- Get current mode in the hardware. Return 1 byte: 0 (off), 1 (reset), 2(ping), 3(continuous),
+ *                                            4 (stream)
+ *  0    1    1    d4   d3   d2   d1   d0  <- Get the nearest distance. [d4-d0] is the number of distance values (1-32) minus 1 to 
+ *                                            search. Return 3 bytes: [bin] [distance (2 bytes)], bin is 0xFF if nothing was found
+ *  0    1    0    0    0    m2   m1   m0  <- Set current mode in the hardware. off (m2m1m0=000), 
+ *                                            reset (m2m1m0=001), ping (m2m1m0=010), continuous (m2m1m0=011), stream (m2m1m0=100)
+ *  1    0    0    d4   d3   d2   d1   d0  <- Get the distance value(s). [d4-d0] is the number of distance values to read (1-32) minus 1 
+ *  1    0    1    d4   d3   d2   d1   d0  <- Get the distance value(s) for a column window, followed by [x0 low] [x0 high] [x1 low] [x1 high].
+ *                                            [d4-d0] is the number of distance values to read (1-32) minus 1, spread over columns x0 to x1
+ *  1    1    0    s4   s3   s2   s1   s0  <- Configure the sensor. [s4-s0] is the setting, followed by its parameter bytes:
+ *                                            0 (stream): [num] [period low byte] [period high byte], period in ms
+ *                                            1 (change reporting): [threshold low byte] [threshold high byte] [keyframe interval]
+ *                                            2 (bin threshold): [bin] [threshold low byte] [threshold high byte]
+ *                                            3 (timestamps): [1 to enable, 0 to disable]
+ *                                            4 (get time): no parameters. Return the sensor clock in ms (4 bytes, little-endian)
+ *                                            5 (echo): [echo] reported by all the distance commands, 0 (nearest) to 7
+ *  1    1    1    d4   d3   d2   d1   d0  <- Get the distance values that changed, followed by [ack]: the sequence number of the last 
+ *                                            response applied (0xFF if none). [d4-d0] is the number of distance values (1-32) minus 1.
+ *                                            Return [seq] [k c5 c4 c3 c2 c1 c0]. If k is set (keyframe) all the distances follow,
+ *                                            otherwise c pairs of [bin] [distance]. A keyframe is sent instead of changes that would be longer.
  *  
+ *  The parameter bytes of a command must follow each other within 20 ms. Otherwise the sensor drops the
+ *  incomplete command and takes the next byte as a new command, which is how the NXT resynchronizes after
+ *  a failed write: I2cUart holds back the next write for longer than that.
  *  
  *  In continuous mode, the sensor keeps polling for distance at a certain interval and stores it in memory until getDistance function is
  *  called by I2C master at which point it returns the latest distance.
+ *
+ *  In stream mode, the sensor pushes a frame of num distances every period without any command being sent:
+ *  [0xA5] [num] [num x distance (2 bytes, little-endian)] [checksum: XOR of num and all the distance bytes]
+ *  A new frame replaces an earlier frame the sensor hasn't started to send yet, and the NXT
+ *  reads the newest complete frame in the RX FIFO, so a slow reader gets recent data rather than a backlog.
+ *
+ *  With change reporting, the sensor only sends the distances that moved by more than their threshold since the
+ *  last acknowledged response, plus a full keyframe every keyframe interval responses (0 means never) or whenever
+ *  the NXT has no frame to build on.
+ *
+ *  Commands 5 to 7 (window, configure and changes) reuse bytes that the first version of this protocol read as
+ *  'get distance' with [d6-d0] (1-128 distances), e.g. 0xC4 (get time) used to request 69 distances. The Pi has
+ *  to run the matching version, and the NXT no longer reads its clock at startup: only setTimestamps(true) or
+ *  syncClock send 'get time'.
+ *
+ *  With timestamps enabled, the responses to get distance, get window distance and get nearest, and the stream
+ *  frames (before the checksum, which covers it) carry 4 more bytes: the sensor clock in ms (little-endian) when
+ *  the distances were captured. 
  */
 
 public class theNextSensor {
@@ -27,21 +64,81 @@ public class theNextSensor {
 
 	private final byte CMD_GET_MODE = 1;
 	private final byte CMD_SET_MODE = 2;
+	private final byte CMD_GET_NEAREST = 3;
 	private final byte CMD_GET_DIST = 4;
+	private final byte CMD_GET_ROI = 5;
+	private final byte CMD_CONFIG = 6;
+	private final byte CMD_GET_CHANGES = 7;
+
+	private final byte CFG_STREAM = 0;
+	private final byte CFG_CHANGES = 1;
+	private final byte CFG_BIN_THRESHOLD = 2;
+	private final byte CFG_TIMESTAMPS = 3;
+	private final byte CFG_GET_TIME = 4;
+	private final byte CFG_ECHO = 5;
+
+	public static final int MAX_ECHOES = 8;
+
+	private final int TIMESTAMP_LEN = 4;
+	private final int CLOCK_SYNC_SAMPLES = 5;
+
+	private final int NO_FRAME_ACK = 0xFF;
+	private final int CHANGES_KEYFRAME = 0x80;
+	private final int CHANGES_COUNT_MASK = 0x3F;
+	private final int CHANGES_HEADER_LEN = 2;
 
 	// Position of the command bits
 	private final byte CMD_SHIFT = 5;
 
+	private final byte STREAM_SYNC = (byte)0xA5;
+	// A default stream frame (3 + 16*2 bytes) fits in the RX FIFO and takes about 37 ms at 9600 baud
+	public static final int DEFAULT_STREAM_NUM = 16;
+	public static final int DEFAULT_STREAM_PERIOD = 50; // ms
+	private final int STREAM_HEADER_LEN = 3; // sync, num and checksum
+	private final int STREAM_FLUSH_ATTEMPTS = 4;
+
 	private String errorMessage;
 
+	private int streamNum;
+	private int streamPeriod;
+	private int streamResyncs;
+	private int streamSkipped;
+	private byte[] streamBuf;
+	private byte[] streamHeader;
+
+	// Frame reconstructed from the change reports
+	private int[] changeFrame;
+	private int changeFrameNum;
+	private int changeSeq;
+	private boolean lastKeyframe;
+	private byte[] changeBuf;
+
+	private byte[] nearestBuf;
+	private int nearestBin;
+	private int nearestNum;
+
+	// Capture timestamps and the offset between the sensor clock and the NXT clock
+	private boolean timestamps;
+	private byte[] timeBuf;
+	private boolean clockSynced;
+	private int clockOffset; // sensor clock - NXT clock, in ms
+	private int clockRtt; // round trip time of the sample the offset was taken from
+	private boolean captureValid;
+	private int captureTime; // capture time of the last frame in NXT clock
+
+	// Picks the number of distances per frame in getDistanceAdaptive
+	private FrameSizeController frameSize;
+
 	public static enum Mode{
 		MODE_OFF,
 		MODE_RESET,
 		MODE_PING,
 		MODE_CONTINUOUS,
+		MODE_STREAM,
 	}
 
 	public theNextSensor(SensorPort port, boolean simulation) {		
+		initState();
 		sensor = new I2cUart(port, simulation);
 		currentMode = Mode.MODE_PING;
 		setMode(currentMode);
@@ -53,6 +150,7 @@ public class theNextSensor {
 	}
 
 	public theNextSensor() {		
+		initState();
 		sensor = new I2cUart();
 		currentMode = Mode.MODE_CONTINUOUS;
 		errorMessage = "";
@@ -63,6 +161,51 @@ public class theNextSensor {
 
 	}
 
+	/*
+	 * Simulated sensor returning distances generated from the given scene
+	 */
+	public theNextSensor(SceneGenerator scene) {
+		initState();
+		sensor = new I2cUart(scene);
+		currentMode = Mode.MODE_CONTINUOUS;
+		errorMessage = "";
+	}
+
+	/*
+	 * Simulated sensor reached through the given bus, e.g. a SocketTransport
+	 * connected to a SimulatorServer running in another process
+	 */
+	public theNextSensor(RegisterBus bus) {
+		initState();
+		sensor = new I2cUart(bus);
+		currentMode = Mode.MODE_CONTINUOUS;
+		errorMessage = "";
+
+		if (!sensor.testConn()) {
+			System.out.println("theNextSensor ERROR: Unable to connect to the sensor.");
+		}
+	}
+
+	/*
+	 * Set the initial state of the settings and buffers shared by all constructors
+	 */
+	private void initState() {
+		streamNum = DEFAULT_STREAM_NUM;
+		streamPeriod = DEFAULT_STREAM_PERIOD;
+		streamBuf = new byte [MAX_DISTANCES*2 + TIMESTAMP_LEN + 1];
+		streamHeader = new byte [2];
+		changeFrame = new int [MAX_DISTANCES];
+		changeFrameNum = 0;
+		changeSeq = NO_FRAME_ACK;
+		changeBuf = new byte [MAX_DISTANCES*3];
+		nearestBuf = new byte [3 + TIMESTAMP_LEN];
+		nearestBin = -1;
+		timestamps = false;
+		timeBuf = new byte [TIMESTAMP_LEN];
+		clockSynced = false;
+		captureValid = false;
+	}
+
 	public int setMode(Mode m) {
 		switch (m) {
 		case MODE_OFF:
@@ -73,6 +216,8 @@ public class theNextSensor {
 			return ping();
 		case MODE_CONTINUOUS:
 			return continuous();
+		case MODE_STREAM:
+			return stream(streamNum, streamPeriod);
 		default:
 			return -1;				
 		}
@@ -91,6 +236,8 @@ public class theNextSensor {
 			return 2;
 		case MODE_CONTINUOUS:
 			return 3;
+		case MODE_STREAM:
+			return 4;
 		default:
 			return 0;				
 		}
@@ -117,6 +264,133 @@ public class theNextSensor {
 		return (short)(low | (high << 8));			
 	}
 
+	/*
+	 * Combine four bytes (little-endian) into an integer
+	 */
+	private int combineInt(byte[] buf, int offset) {
+		return (buf[offset] & 0xff) | ((buf[offset+1] & 0xff) << 8)
+				| ((buf[offset+2] & 0xff) << 16) | ((buf[offset+3] & 0xff) << 24);
+	}
+
+	/*
+	 * Record the capture time of a frame received in sensor clock
+	 */
+	private void setCaptureTime(byte[] buf, int offset) {
+		if (!timestamps) {
+			captureValid = false;
+			return;
+		}
+		captureTime = combineInt(buf, offset) - clockOffset;
+		captureValid = clockSynced;
+	}
+
+	/*
+	 * Estimate the offset between the sensor clock and the NXT clock. The sensor time is read 
+	 * several times and the sample with the shortest round trip is kept, assuming the sensor 
+	 * read its clock halfway through the round trip. The error is at most half that round trip.
+	 * Return 0 if success, -1 otherwise.
+	 */
+	public int syncClock(int samples) {
+		int bestRtt = -1;
+		for (int i=0; i<samples; i++) {
+			int t0 = (int)System.currentTimeMillis();
+			if (sensor.writeByte((byte)((CMD_CONFIG << CMD_SHIFT) | CFG_GET_TIME)) != 0
+					|| sensor.readData(timeBuf, TIMESTAMP_LEN) != 0) {
+				// the sensor may not support it. Don't keep trying.
+				break;
+			}
+			int t1 = (int)System.currentTimeMillis();
+			int rtt = t1 - t0;
+			if (bestRtt < 0 || rtt < bestRtt) {
+				bestRtt = rtt;
+				clockOffset = combineInt(timeBuf, 0) - (t0 + rtt/2);
+			}
+		}
+		if (bestRtt < 0) {
+			createErrorMessage("syncClock: Unable to read the sensor clock");
+			return -1;
+		}
+		clockRtt = bestRtt;
+		clockSynced = true;
+		return 0;
+	}
+
+	public boolean isClockSynced() {
+		return clockSynced;
+	}
+
+	/*
+	 * Sensor clock minus NXT clock in ms
+	 */
+	public int getClockOffset() {
+		return clockOffset;
+	}
+
+	/*
+	 * Maximum error of the clock offset in ms
+	 */
+	public int getClockUncertainty() {
+		return (clockRtt + 1)/2;
+	}
+
+	/*
+	 * Ask the sensor to add the capture time to every distance response.
+	 * The clock is synchronized first if it wasn't yet, and timestamps aren't enabled if the sensor
+	 * can't report its clock. In stream mode the clock can't be read, so call syncClock before
+	 * starting the stream; until then getCaptureTime returns -1.
+	 */
+	public int setTimestamps(boolean enable) {
+		if (enable && currentMode == Mode.MODE_STREAM && checkStreamFrame(streamNum, streamPeriod, true) != 0) {
+			return -1;
+		}
+		if (enable && !clockSynced && currentMode != Mode.MODE_STREAM && syncClock(CLOCK_SYNC_SAMPLES) != 0) {
+			return -1;
+		}
+		if (sensor.writeByte((byte)((CMD_CONFIG << CMD_SHIFT) | CFG_TIMESTAMPS)) != 0
+				|| sensor.writeByte((byte)(enable ? 1 : 0)) != 0) {
+			createErrorMessage("Unable to set timestamps");
+			return -1;
+		}
+		timestamps = enable;
+		captureValid = false;
+		return 0;
+	}
+
+	/*
+	 * Select which echo of every bin the distance commands report: 0 is the nearest object
+	 * covering the bin, 1 the one behind it and so on. A bin with fewer echoes reports -1.
+	 */
+	public int setEcho(int echo) {
+		if (echo < 0 || echo >= MAX_ECHOES) {
+			createErrorMessage("setEcho: Invalid echo (" + echo + ")");
+			return -1;
+		}
+		if (sensor.writeByte((byte)((CMD_CONFIG << CMD_SHIFT) | CFG_ECHO)) != 0
+				|| sensor.writeByte((byte)echo) != 0) {
+			createErrorMessage("Unable to set the echo");
+			return -1;
+		}
+		return 0;
+	}
+
+	/*
+	 * Capture time of the last frame in NXT clock (ms), or -1 if it isn't known
+	 */
+	public int getCaptureTime() {
+		return captureValid ? captureTime : -1;
+	}
+
+	/*
+	 * Time in ms between the capture of the last frame and now, or -1 if it isn't known.
+	 * Shows how stale the distances are, e.g. when they come from the buffer of the continuous mode.
+	 */
+	public int getFrameAge() {
+		if (!captureValid) {
+			return -1;
+		}
+		return (int)System.currentTimeMillis() - captureTime;
+	}
+
 	public String getErrorTrace() {
 		return (errorMessage + "\n\t..." + sensor.getErrorMessage());
 	}
@@ -129,6 +403,105 @@ public class theNextSensor {
 		return currentMode;
 	}
 
+	/*
+	 * Retry/recovery settings and counters of the underlying UART
+	 */
+	public RecoveryPolicy getRecoveryPolicy() {
+		return sensor.getRecoveryPolicy();
+	}
+
+	/*
+	 * Enable flow control between the Pi and the UART so the Pi can't overrun the RX FIFO
+	 */
+	public int setFlowControl(I2cUart.FlowControl fc) {
+		if (sensor.setFlowControl(fc) != 0) {
+			createErrorMessage("Unable to set flow control");
+			return -1;
+		}
+		return 0;
+	}
+
+	/*
+	 * Change the baudrate between the Pi and the UART. The frame size learned by
+	 * getDistanceAdaptive no longer applies, so it is learned again.
+	 */
+	public int setBaudRate(int baud) {
+		if (sensor.setBaudRate(baud) != 0) {
+			createErrorMessage("Unable to set the baudrate: " + sensor.getErrorMessage());
+			return -1;
+		}
+		if (frameSize != null) {
+			frameSize.reset();
+		}
+		return 0;
+	}
+
+	/*
+	 * Measure the round trip time, throughput and error rate of the link to the UART.
+	 * The UART is put in loopback mode while measuring, so nothing is sent to the sensor.
+	 */
+	public int calibrateLink(int length, LinkCalibration result) {
+		if (sensor.calibrate(length, result) != 0) {
+			createErrorMessage("Unable to calibrate the link: " + sensor.getErrorMessage());
+			return -1;
+		}
+		return 0;
+	}
+
+	/*
+	 * Largest number of distances getDistance can request. Without flow control the Pi sends the
+	 * whole response at once, so with the timestamp appended no more than 30 distances fit in the RX FIFO.
+	 */
+	public int getMaxDistances() {
+		if (!timestamps || sensor.getFlowControl() != I2cUart.FlowControl.FLOW_NONE) {
+			return MAX_DISTANCES;
+		}
+		return (I2cUart.FIFO_SIZE - TIMESTAMP_LEN)/2;
+	}
+
+	/*
+	 * Let getDistanceAdaptive read as many distances per frame as fit in the given time in ms
+	 */
+	public void setLatencyBudget(int budget) {
+		if (frameSize == null) {
+			frameSize = new FrameSizeController(budget, 1, MAX_DISTANCES);
+		} else {
+			frameSize.setBudget(budget);
+		}
+	}
+
+	public FrameSizeController getFrameSizeController() {
+		return frameSize;
+	}
+
+	/*
+	 * Same as getDistance(int[][], int) with the number of distances picked by the
+	 * FrameSizeController so that a frame fits in the latency budget (see setLatencyBudget).
+	 * The transfer time of every frame is fed back to the controller.
+	 * Return the number of distances read or a negative value on error.
+	 */
+	public int getDistanceAdaptive(int[][] dist) {
+		if (frameSize == null) {
+			createErrorMessage("getDistanceAdaptive: no latency budget set");
+			return -1;
+		}
+		int num = frameSize.getNum();
+		if (num > getMaxDistances()) {
+			num = getMaxDistances();
+		}
+		if (dist.length < 2 || dist[0].length < num || dist[1].length < num) {
+			createErrorMessage("getDistanceAdaptive: distance array is smaller than " + num);
+			return -12;
+		}
+		long start = System.currentTimeMillis();
+		int ret = getDistance(dist, num);
+		frameSize.update(num, (int)(System.currentTimeMillis() - start), ret == 0);
+		if (ret != 0) {
+			return ret;
+		}
+		return num;
+	}
+
 	/*
 	 * Turn off the sensor. This call disables the sensor. 
 	 * No pings will be issued after this call, until either ping, continuous or reset is called.
@@ -140,6 +513,7 @@ public class theNextSensor {
 			createErrorMessage("Unable to turn off the sensors");
 			return -1;			
 		}
+		flushStream();
 		currentMode = Mode.MODE_OFF;
 		return 0;
 	}	
@@ -156,6 +530,7 @@ public class theNextSensor {
 			createErrorMessage("Unable to set reset the sensor");			
 			return -1;
 		}
+		flushStream();
 		currentMode = Mode.MODE_CONTINUOUS;
 		return 0;
 	}	
@@ -181,6 +556,7 @@ public class theNextSensor {
 			createErrorMessage("Unable to set the mode to Ping");						
 			return -1;
 		}
+		flushStream();
 		currentMode = Mode.MODE_PING;		
 		return 0;
 	}	
@@ -196,10 +572,406 @@ public class theNextSensor {
 			createErrorMessage("Unable to set the mode to Continuous");									
 			return -1;
 		}
+		flushStream();
 		currentMode = Mode.MODE_CONTINUOUS;		
 		return 0;
 	}	
 
+	/*
+	 * Switch to stream mode. The sensor pushes a frame of num distances every periodMs
+	 * without waiting for a command, so getDistance only has to read the frame from the
+	 * RX FIFO. Use flow control if the NXT may fall behind the stream.
+	 * The frame must be sent within the period at the current baudrate, and without
+	 * flow control it must fit in the RX FIFO.
+	 */
+	public int stream(int num, int periodMs) {
+		if (num < 1 || num > MAX_DISTANCES) {
+			createErrorMessage("stream: Invalid number of distances (" + num + ")");
+			return -1;
+		}
+		if (periodMs < 1 || periodMs > 0xffff) {
+			createErrorMessage("stream: Invalid period (" + periodMs + " ms)");
+			return -1;
+		}
+		if (checkStreamFrame(num, periodMs, timestamps) != 0) {
+			return -1;
+		}
+		// configure the stream first and then start it
+		if (sensor.writeByte((byte)((CMD_CONFIG << CMD_SHIFT) | CFG_STREAM)) != 0
+				|| sensor.writeByte((byte)num) != 0
+				|| sensor.writeByte((byte)(periodMs & 0xff)) != 0
+				|| sensor.writeByte((byte)((periodMs >> 8) & 0xff)) != 0) {
+			createErrorMessage("Unable to configure the stream");
+			return -1;
+		}
+		if (sensor.writeByte((byte)((CMD_SET_MODE << CMD_SHIFT) | modeToByte(Mode.MODE_STREAM))) != 0) {
+			// some error occurred
+			createErrorMessage("Unable to set the mode to Stream");
+			return -1;
+		}
+		streamNum = num;
+		streamPeriod = periodMs;
+		currentMode = Mode.MODE_STREAM;
+		return 0;
+	}
+
+	/*
+	 * Check that a stream frame of num distances can be sent every periodMs.
+	 * Return 0 if it can, -1 otherwise (see getErrorTrace).
+	 */
+	private int checkStreamFrame(int num, int periodMs, boolean timestamps) {
+		int len = STREAM_HEADER_LEN + num*2 + (timestamps ? TIMESTAMP_LEN : 0);
+		if (len > I2cUart.FIFO_SIZE && sensor.getFlowControl() == I2cUart.FlowControl.FLOW_NONE) {
+			createErrorMessage("stream: A frame of " + len + " bytes overruns the RX FIFO without flow control");
+			return -1;
+		}
+		int time = sensor.transferTime(len);
+		if (time > periodMs) {
+			createErrorMessage("stream: A frame takes " + time + " ms at " + sensor.getBaudRate() 
+					+ " baud, longer than the period of " + periodMs + " ms");
+			return -1;
+		}
+		return 0;
+	}
+
+	/*
+	 * Called once the Pi was told to leave stream mode. The Pi still finishes the frame it is sending,
+	 * so wait a stream period for it and then drop it with anything else left in the RX FIFO.
+	 * Otherwise the next response would be read after the remains of the stream.
+	 */
+	private void flushStream() {
+		if (currentMode != Mode.MODE_STREAM) {
+			return;
+		}
+		Delay.msDelay(streamPeriod);
+		for (int i=0; i<STREAM_FLUSH_ATTEMPTS; i++) {
+			sensor.resetFifo(true, false);
+			// With flow control the rest of a halted frame only arrives once the FIFO was emptied
+			Delay.msDelay(sensor.transferTime(1) + 1);
+			if (sensor.availableData() == 0) {
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Number of times the stream had to be resynchronized because a frame was corrupted or lost
+	 */
+	public int getStreamResyncs() {
+		return streamResyncs;
+	}
+
+	/*
+	 * Number of older stream frames skipped to return the newest one
+	 */
+	public int getSkippedStreamFrames() {
+		return streamSkipped;
+	}
+
+	/*
+	 * Read the newest frame pushed by the sensor in stream mode. Frames that queued up in the
+	 * RX FIFO because the NXT polled slower than the period are skipped.
+	 * Bytes are skipped until the start of a frame is found, so the stream recovers from lost bytes.
+	 */
+	private int readStreamFrame(int[] dist, int num) {
+		int ret;
+		for (int attempt=0; ; attempt++) {
+			ret = readStreamFrameOnce(dist, num);
+			if (ret >= 0) {
+				break;
+			}
+			if (ret == -2) {
+				// nothing arrived, so there is nothing to resynchronize to
+				createErrorMessage("getDistance: No stream frame received");
+				break;
+			}
+			streamResyncs++;
+			RecoveryPolicy recovery = sensor.getRecoveryPolicy();
+			if (attempt >= recovery.getMaxFrameRetries()) {
+				createErrorMessage("getDistance: Unable to synchronize to the stream");
+				break;
+			}
+			// the resync is the retry, so the next frame is read with single attempts
+			recovery.recordFrameRetry();
+			recovery.setFrameRetry(true);
+		}
+		endFrameRetry();
+		if (ret < 0) {
+			return -1;
+		}
+		// a newer frame is waiting, so the one just read is already out of date
+		int frameLen = STREAM_HEADER_LEN + num*2 + (timestamps ? TIMESTAMP_LEN : 0);
+		while (sensor.availableData() >= frameLen && readStreamFrameOnce(dist, num) == 0) {
+			streamSkipped++;
+		}
+		return 0;
+	}
+
+	/*
+	 * Read one stream frame. Return 0 if success, -1 if the frame was corrupted or
+	 * out of sync and -2 if no data arrived.
+	 */
+	private int readStreamFrameOnce(int[] dist, int num) {
+		// Read the sync byte and the frame length
+		if (sensor.readData(streamHeader, 2) != 0) {
+			return -2;
+		}
+		// Look for the start of the frame if it isn't there. A frame is never longer than this.
+		int skipped = 0;
+		while (streamHeader[0] != STREAM_SYNC && skipped++ < streamBuf.length + 2) {
+			if (sensor.readData(streamBuf, 1) != 0) {
+				return -2;
+			}
+			streamHeader[0] = streamHeader[1];
+			streamHeader[1] = streamBuf[0];
+		}
+		if (streamHeader[0] != STREAM_SYNC) {
+			return -1;
+		}
+
+		int frameNum = streamHeader[1] & 0xff;
+		int len = num*2 + (timestamps ? TIMESTAMP_LEN : 0);
+		if (frameNum != num || sensor.readData(streamBuf, len + 1) != 0) {
+			return -1;
+		}
+		// check the frame is complete and uncorrupted
+		byte checksum = (byte)frameNum;
+		for (int i=0; i<len; i++) {
+			checksum ^= streamBuf[i];
+		}
+		if (checksum != streamBuf[len]) {
+			return -1;
+		}
+		for (int i=0; i<num; i++) {
+			dist[i] = combineBytes(streamBuf[i*2], streamBuf[(i*2)+1]);
+		}
+		setCaptureTime(streamBuf, num*2);
+		return 0;
+	}
+
+
+	/*
+	 * Set the change a distance must exceed to be reported by getDistanceChanges for all bins,
+	 * and how many responses may go by before a full keyframe is sent (0 for never)
+	 */
+	public int setChangeThreshold(int threshold, int keyframeInterval) {
+		if (threshold < 0 || threshold > 0xffff || keyframeInterval < 0 || keyframeInterval > 0xff) {
+			createErrorMessage("setChangeThreshold: Invalid threshold (" + threshold + ") or keyframe interval (" + keyframeInterval + ")");
+			return -1;
+		}
+		if (sensor.writeByte((byte)((CMD_CONFIG << CMD_SHIFT) | CFG_CHANGES)) != 0
+				|| sensor.writeByte((byte)(threshold & 0xff)) != 0
+				|| sensor.writeByte((byte)((threshold >> 8) & 0xff)) != 0
+				|| sensor.writeByte((byte)keyframeInterval) != 0) {
+			createErrorMessage("Unable to set the change threshold");
+			return -1;
+		}
+		return 0;
+	}
+
+	/*
+	 * Set the change threshold of a single bin, e.g. to ignore a noisy bin at the edge of the image
+	 */
+	public int setBinThreshold(int bin, int threshold) {
+		if (bin < 0 || bin >= MAX_DISTANCES || threshold < 0 || threshold > 0xffff) {
+			createErrorMessage("setBinThreshold: Invalid bin (" + bin + ") or threshold (" + threshold + ")");
+			return -1;
+		}
+		if (sensor.writeByte((byte)((CMD_CONFIG << CMD_SHIFT) | CFG_BIN_THRESHOLD)) != 0
+				|| sensor.writeByte((byte)bin) != 0
+				|| sensor.writeByte((byte)(threshold & 0xff)) != 0
+				|| sensor.writeByte((byte)((threshold >> 8) & 0xff)) != 0) {
+			createErrorMessage("Unable to set the bin threshold");
+			return -1;
+		}
+		return 0;
+	}
+
+	/*
+	 * Get num distances like getDistance(int[], int) but only transfer the ones that changed.
+	 * dist receives the full frame reconstructed from the changes.
+	 * Return the number of distances that were received (num for a keyframe) or -1 on error.
+	 */
+	public int getDistanceChanges(int[] dist, int num) {
+		if (num > MAX_DISTANCES || num < 1) {
+			createErrorMessage("getDistanceChanges: Invalid number of distances requested (" + num + ")");
+			return -1;
+		}
+		if (currentMode == Mode.MODE_STREAM) {
+			// the sensor only sends stream frames
+			createErrorMessage("getDistanceChanges: Not supported in stream mode");
+			return -1;
+		}
+		if (CHANGES_HEADER_LEN + num*2 > I2cUart.FIFO_SIZE && sensor.getFlowControl() == I2cUart.FlowControl.FLOW_NONE) {
+			// a keyframe is sent at once and would overrun the RX FIFO
+			createErrorMessage("getDistanceChanges: A keyframe of " + (CHANGES_HEADER_LEN + num*2) 
+					+ " bytes overruns the RX FIFO without flow control");
+			return -1;
+		}
+		if (dist.length < num) {
+			createErrorMessage("getDistanceChanges: array (length: " + dist.length + ") is not big enough to hold the requested distances " 
+					+ num);
+			return -1;
+		}
+		if (num != changeFrameNum) {
+			// the frame we have is of no use to the sensor
+			changeSeq = NO_FRAME_ACK;
+		}
+
+		// The frame is re-requested with the same ack, so the sensor reports against the frame we still have
+		int received;
+		for (int attempt=0; ; attempt++) {
+			received = readChanges(num);
+			if (received >= 0 || !retryFrame(attempt)) {
+				break;
+			}
+		}
+		endFrameRetry();
+		if (received < 0) {
+			return -1;
+		}
+
+		for (int i=0; i<num; i++) {
+			dist[i] = changeFrame[i];
+		}
+		return received;
+	}
+
+	/*
+	 * True if the last getDistanceChanges call received a full keyframe
+	 */
+	public boolean isKeyframe() {
+		return lastKeyframe;
+	}
+
+	/*
+	 * Request the changes and apply them to the reconstructed frame.
+	 * Return the number of distances received or -1 on error.
+	 */
+	private int readChanges(int num) {
+		if (sensor.writeByte((byte)((CMD_GET_CHANGES << CMD_SHIFT) | num-1)) < 0
+				|| sensor.writeByte((byte)changeSeq) < 0) {
+			createErrorMessage("getDistanceChanges: Error sending 'get changes' command");
+			return -1;
+		}
+		if (sensor.readData(changeBuf, CHANGES_HEADER_LEN) < 0) {
+			createErrorMessage("getDistanceChanges: Error reading the change header from the sensor");
+			return -1;
+		}
+		int seq = changeBuf[0] & 0xff;
+		boolean keyframe = (changeBuf[1] & CHANGES_KEYFRAME) != 0;
+		int count = changeBuf[1] & CHANGES_COUNT_MASK;
+
+		if (keyframe) {
+			if (sensor.readData(changeBuf, num*2) < 0) {
+				createErrorMessage("getDistanceChanges: Error reading the keyframe from the sensor");
+				return -1;
+			}
+			for (int i=0; i<num; i++) {
+				changeFrame[i] = combineBytes(changeBuf[i*2], changeBuf[(i*2)+1]);
+			}
+			count = num;
+		} else {
+			if (count > num || (count > 0 && sensor.readData(changeBuf, count*3) < 0)) {
+				createErrorMessage("getDistanceChanges: Error reading " + count + " changes from the sensor");
+				return -1;
+			}
+			for (int i=0; i<count; i++) {
+				int bin = changeBuf[i*3] & 0xff;
+				if (bin >= num) {
+					createErrorMessage("getDistanceChanges: Invalid bin " + bin + " received");
+					return -1;
+				}
+			}
+			// only apply the changes once the whole response is known to be valid
+			for (int i=0; i<count; i++) {
+				changeFrame[changeBuf[i*3] & 0xff] = combineBytes(changeBuf[(i*3)+1], changeBuf[(i*3)+2]);
+			}
+		}
+		changeSeq = seq;
+		changeFrameNum = num;
+		lastKeyframe = keyframe;
+		// the reconstructed frame mixes distances of different ages
+		captureValid = false;
+		return count;
+	}
+
+	/*
+	 * Return the distance to the nearest object over the full set of distances, or -1 if
+	 * there is none or an error occurred (see getErrorTrace). Only 3 bytes are transferred,
+	 * so this is the fastest way to check for an obstacle.
+	 */
+	public int getNearest() {
+		return getNearest(MAX_DISTANCES);
+	}
+
+	/*
+	 * Return the distance to the nearest object out of num distances spread over the image,
+	 * or -1 if there is none or an error occurred.
+	 * The bin of the nearest object is available from getNearestBin.
+	 */
+	public int getNearest(int num) {
+		nearestBin = -1;
+		if (num > MAX_DISTANCES || num < 1) {
+			createErrorMessage("getNearest: Invalid number of distances (" + num + ")");
+			return -1;
+		}
+		if (currentMode == Mode.MODE_STREAM) {
+			// the sensor only sends stream frames
+			createErrorMessage("getNearest: Not supported in stream mode");
+			return -1;
+		}
+
+		boolean received = false;
+		for (int attempt=0; ; attempt++) {
+			if (sensor.writeByte((byte)((CMD_GET_NEAREST << CMD_SHIFT) | num-1)) < 0) {
+				createErrorMessage("getNearest: Error sending 'get nearest' command");
+			} else if (sensor.readData(nearestBuf, 3 + (timestamps ? TIMESTAMP_LEN : 0)) < 0) {
+				createErrorMessage("getNearest: Error reading the nearest distance from the sensor");
+			} else {
+				received = true;
+			}
+			if (received || !retryFrame(attempt)) {
+				break;
+			}
+		}
+		endFrameRetry();
+		if (!received) {
+			return -1;
+		}
+
+		setCaptureTime(nearestBuf, 3);
+		int bin = nearestBuf[0] & 0xff;
+		if (bin == 0xff) {
+			// no object found
+			return -1;
+		}
+		if (bin >= num) {
+			createErrorMessage("getNearest: Invalid bin " + bin + " received");
+			return -1;
+		}
+		nearestBin = bin;
+		nearestNum = num;
+		return combineBytes(nearestBuf[1], nearestBuf[2]);
+	}
+
+	/*
+	 * Bin of the distance returned by the last getNearest call, or -1 if nothing was found
+	 */
+	public int getNearestBin() {
+		return nearestBin;
+	}
+
+	/*
+	 * Image column of the distance returned by the last getNearest call, or -1 if nothing was found
+	 */
+	public int getNearestX() {
+		if (nearestBin < 0) {
+			return -1;
+		}
+		return binToX(nearestBin, nearestNum, 0, xpixels-1);
+	}
+
 	/*
 	 * Return distance to an object. 
 	 * Returns: distance or -1 if no object in range
@@ -221,15 +993,26 @@ public class theNextSensor {
 		if (currentMode == Mode.MODE_CONTINUOUS) {
 			// In continuous mode, only retrieve one distance values
 			num  = 1;
+		} else if (currentMode == Mode.MODE_STREAM) {
+			// In stream mode, the frame size is set when the stream is started
+			num = streamNum;
 		} else {
 			// In Ping mode, get maximum number of distance values
-			num = MAX_DISTANCES;
+			num = getMaxDistances();
 		}
 		return getDistance(dist, num);
 	}	
 
 	public int getDistance(int[] dist, int num) {
-		byte[] buf = new byte [MAX_DISTANCES*2];
+		return getDistance(dist, num, 0, xpixels-1);
+	}
+
+	/*
+	 * Return num distances spread over the columns x0 to x1 (inclusive) of the image.
+	 * Only the window is processed by the sensor, so a narrow corridor costs less than a full scan.
+	 */
+	public int getDistance(int[] dist, int num, int x0, int x1) {
+		byte[] buf = new byte [MAX_DISTANCES*2 + TIMESTAMP_LEN];
 
 		if (num > MAX_DISTANCES) {
 			// Currently maximum of 8 distances from 8 different objects are returned
@@ -248,41 +1031,114 @@ public class theNextSensor {
 			return -1;
 		}
 
-		// send request to get the given number of distances
-		if(sensor.writeByte((byte)((CMD_GET_DIST << CMD_SHIFT) | num-1)) < 0) {
-			// error writing the request
-			createErrorMessage("getDistance: Error sending 'get distance' command");
+		if (x0 < 0 || x1 >= xpixels || (x1 - x0 + 1) < num + 1) {
+			// the window must leave at least one column between two distances
+			createErrorMessage("getDistance: Invalid column window [" + x0 + ", " + x1 + "] for " + num + " distances");
 			return -1;
-		};
-//		Delay.msDelay(1000);
-//		if(sensor.readData(buf, num*4) < 0) {
-//			// error reading the data
-//			createErrorMessage("getDistance: Error reading distance values from the sensor");			
-//			return -1;
-//		}
-		
-		
-		
-		byte[] tmpbuf = new byte[2];
-//		int i = 0;
-		int i = 0;
-		// read the distances (each distance value is 2 bytes long)
-		while(sensor.availableData() < num*2) ;
-		//System.out.println("Initial Count: " + sensor.availableData());
-		//Button.waitForAnyPress();
-		//if(sensor.readData(buf, num*4) < 0) {
-		while(sensor.availableData() > 0){
-			// error reading the data
-			sensor.readData(tmpbuf, 2);
-			//System.out.println("Bytes available: " + sensor.availableData());
-			dist[i] = combineBytes(tmpbuf[0], tmpbuf[1]);
-			//int firstInterval = xpixels/(num+1);
-			i++;
+		}
+		boolean fullWidth = (x0 == 0) && (x1 == xpixels-1);
+
+		if (currentMode != Mode.MODE_STREAM && num > getMaxDistances()) {
+			createErrorMessage("getDistance: A response of " + (num*2 + TIMESTAMP_LEN) 
+					+ " bytes overruns the RX FIFO without flow control. Max is " + getMaxDistances() + " distances");
+			return -1;
+		}
+
+		if (currentMode == Mode.MODE_STREAM) {
+			if (!fullWidth) {
+				createErrorMessage("getDistance: Column window not supported in stream mode");
+				return -1;
+			}
+			if (num != streamNum) {
+				createErrorMessage("getDistance: " + num + " distances requested but the stream sends " + streamNum);
+				return -1;
+			}
+			return readStreamFrame(dist, num);
+		}
+
+		int ret;
+		for (int attempt=0; ; attempt++) {
+			ret = readDistances(buf, num, fullWidth, x0, x1);
+			if (ret == 0 || !retryFrame(attempt)) {
+				break;
+			}
+		}
+		endFrameRetry();
+		if (ret != 0) {
+			return -1;
+		}
+
+		// each distance value is 2 bytes long
+		for (int i=0; i<num; i++) {
+			dist[i] = combineBytes(buf[i*2], buf[(i*2)+1]);
+		}
+		setCaptureTime(buf, num*2);
+		return 0;
+	}
+
+	/*
+	 * Send the 'get distance' command (or the windowed version of it) and read the raw distance bytes
+	 */
+	private int readDistances(byte[] buf, int num, boolean fullWidth, int x0, int x1) {
+		if (fullWidth) {
+			// send request to get the given number of distances
+			if(sensor.writeByte((byte)((CMD_GET_DIST << CMD_SHIFT) | num-1)) < 0) {
+				// error writing the request
+				createErrorMessage("getDistance: Error sending 'get distance' command");
+				return -1;
+			}
+		} else {
+			// send request to get the given number of distances over the column window
+			if (sensor.writeByte((byte)((CMD_GET_ROI << CMD_SHIFT) | num-1)) < 0
+					|| sensor.writeByte((byte)(x0 & 0xff)) < 0
+					|| sensor.writeByte((byte)((x0 >> 8) & 0xff)) < 0
+					|| sensor.writeByte((byte)(x1 & 0xff)) < 0
+					|| sensor.writeByte((byte)((x1 >> 8) & 0xff)) < 0) {
+				// error writing the request
+				createErrorMessage("getDistance: Error sending 'get window distance' command");
+				return -1;
 			}
-			//createErrorMessage("getDistance: Error reading distance values from the sensor");			
-			//return -1;
+		}
+		if(sensor.readData(buf, num*2 + (timestamps ? TIMESTAMP_LEN : 0)) < 0) {
+			// error reading the data
+			createErrorMessage("getDistance: Error reading distance values from the sensor");			
+			return -1;
+		}
 		return 0;
-			 }
+	}
+
+	/*
+	 * Prepare to request a frame again after the given attempt failed. The Pi may have lost its mode
+	 * (e.g. it restarted), so the mode is re-asserted and any late bytes of the failed frame are dropped.
+	 * The UART operations of the repeated frame are tried only once (see RecoveryPolicy).
+	 * Return false if the frame retries are used up.
+	 */
+	private boolean retryFrame(int attempt) {
+		RecoveryPolicy recovery = sensor.getRecoveryPolicy();
+		if (attempt >= recovery.getMaxFrameRetries()) {
+			return false;
+		}
+		recovery.recordFrameRetry();
+		recovery.setFrameRetry(true);
+		reassertMode();
+		sensor.resetFifo(true, false);
+		return true;
+	}
+
+	/*
+	 * Go back to retrying the UART operations once the frame was received or given up on
+	 */
+	private void endFrameRetry() {
+		sensor.getRecoveryPolicy().setFrameRetry(false);
+	}
+
+	/*
+	 * Send the current mode to the Pi again without changing it
+	 */
+	private int reassertMode() {
+		sensor.getRecoveryPolicy().recordModeReassert();
+		return sensor.writeByte((byte)((CMD_SET_MODE << CMD_SHIFT) | modeToByte(currentMode)));
+	}
 		
 		
 //		System.out.println(sensor.availableData());
@@ -320,4 +1176,32 @@ public class theNextSensor {
 		return getDistance(dist[1], num);
 	}
 
+	/*
+	 * Same as getDistance(int[][], int) for the columns x0 to x1 only.
+	 * dist[0] receives the x-position of each distance in image columns.
+	 */
+	public int getDistance(int[][] dist, int num, int x0, int x1) {
+		if (dist.length < 2) {
+			createErrorMessage("2D distance array length has to be 2");
+			return -11;
+		}
+		if (dist[0].length < num) {
+			createErrorMessage("2D distance array size must be equal to greater than required distances");
+			return -12;
+		}
+		for (int i=0; i<num; i++) {
+			dist[0][i] = binToX(i, num, x0, x1);
+		}
+		return getDistance(dist[1], num, x0, x1);
+	}
+
+	/*
+	 * Column of the image at which distance i out of num is measured when the
+	 * distances are spread over the columns x0 to x1. The sensor uses the same mapping.
+	 */
+	public static int binToX(int i, int num, int x0, int x1) {
+		int interval = (x1 - x0 + 1)/(num+1);
+		return x0 + (i+1)*interval;
+	}
+
 }